@@ -0,0 +1,170 @@
+package org.cloudifysource.esc.driver.provisioning.openstack.essex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A future completed by whoever produces the result, with listeners that run on completion.
+ * Lets a single thread (a selector, a status watcher) serve many waiting callers.
+ *
+ * @param <T> the result type.
+ */
+public class AsyncResult<T> implements Future<T> {
+
+	private static final Logger logger = Logger.getLogger(AsyncResult.class.getName());
+
+	private final CountDownLatch done = new CountDownLatch(1);
+	private List<Runnable> listeners = new ArrayList<Runnable>();
+	private T value;
+	private Throwable failure;
+	private boolean cancelled;
+
+	/**
+	 * Completes the result with a value.
+	 *
+	 * @param result the value.
+	 * @return false if the result was already complete.
+	 */
+	public boolean complete(final T result) {
+		final List<Runnable> toRun;
+		synchronized (this) {
+			if (isDone()) {
+				return false;
+			}
+			this.value = result;
+			toRun = finish();
+		}
+		runListeners(toRun);
+		return true;
+	}
+
+	/**
+	 * Completes the result with a failure.
+	 *
+	 * @param cause the failure.
+	 * @return false if the result was already complete.
+	 */
+	public boolean fail(final Throwable cause) {
+		final List<Runnable> toRun;
+		synchronized (this) {
+			if (isDone()) {
+				return false;
+			}
+			this.failure = cause;
+			toRun = finish();
+		}
+		runListeners(toRun);
+		return true;
+	}
+
+	public boolean cancel(final boolean mayInterruptIfRunning) {
+		final List<Runnable> toRun;
+		synchronized (this) {
+			if (isDone()) {
+				return false;
+			}
+			this.cancelled = true;
+			toRun = finish();
+		}
+		runListeners(toRun);
+		return true;
+	}
+
+	/**
+	 * Registers a listener to run once the result is complete. Runs it right away if it already is.
+	 *
+	 * @param listener the listener.
+	 */
+	public void addListener(final Runnable listener) {
+		synchronized (this) {
+			if (!isDone()) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		runListener(listener);
+	}
+
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	/**
+	 * @return true if the result completed with a value.
+	 */
+	public synchronized boolean isSuccess() {
+		return isDone() && !cancelled && failure == null;
+	}
+
+	public T get()
+			throws InterruptedException, ExecutionException {
+		done.await();
+		return getResult();
+	}
+
+	public T get(final long timeout, final TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit)) {
+			throw new TimeoutException("Result not available after " + unit.toMillis(timeout) + " ms");
+		}
+		return getResult();
+	}
+
+	/**
+	 * Waits for the result until the given deadline.
+	 *
+	 * @param endTime the deadline in epoch millis.
+	 * @return the value.
+	 * @throws InterruptedException .
+	 * @throws ExecutionException if the result failed.
+	 * @throws TimeoutException if the deadline passed first.
+	 */
+	public T await(final long endTime)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		return get(Math.max(0, endTime - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized T getResult()
+			throws ExecutionException {
+		if (cancelled) {
+			throw new CancellationException();
+		}
+		if (failure != null) {
+			throw new ExecutionException(failure);
+		}
+		return value;
+	}
+
+	private List<Runnable> finish() {
+		final List<Runnable> toRun = listeners;
+		listeners = null;
+		done.countDown();
+		return toRun;
+	}
+
+	private void runListeners(final List<Runnable> toRun) {
+		for (final Runnable listener : toRun) {
+			runListener(listener);
+		}
+	}
+
+	private void runListener(final Runnable listener) {
+		try {
+			listener.run();
+		} catch (final RuntimeException e) {
+			logger.log(Level.WARNING, "Listener of an asynchronous result failed: " + e.getMessage(), e);
+		}
+	}
+}
@@ -4,10 +4,18 @@ public class AuthInfo {
 
 	private String token;
 	private String computeServiceEndpointURL;
+	private long expires;
 	public AuthInfo(String token, String computeServiceEndpointURL) {
+		this(token, computeServiceEndpointURL, -1);
+	}
+	/**
+	 * @param expires the token expiry time in epoch millis, or -1 if keystone did not report one.
+	 */
+	public AuthInfo(String token, String computeServiceEndpointURL, long expires) {
 		super();
 		this.token = token;
 		this.computeServiceEndpointURL = computeServiceEndpointURL;
+		this.expires = expires;
 	}
 	public String getToken() {
 		return token;
@@ -15,8 +23,11 @@ public class AuthInfo {
 	public String getComputeServiceEndpointURL() {
 		return computeServiceEndpointURL;
 	}
-	
-	
-	
-	
+	public long getExpires() {
+		return expires;
+	}
+
+
+
+
 }
@@ -0,0 +1,50 @@
+package org.cloudifysource.esc.driver.provisioning.openstack.essex;
+
+import java.util.Map;
+
+/**
+ * Reads optional numeric and boolean fields of a cloud custom map. Values may be given as strings or
+ * as numbers in the cloud groovy file.
+ *
+ */
+final class CustomSettings {
+
+	private CustomSettings() {
+	}
+
+	static long getLong(final Map<String, Object> custom, final String key, final long defaultValue) {
+		final Object value = custom == null ? null : custom.get(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value.toString().trim());
+		} catch (final NumberFormatException e) {
+			throw new IllegalArgumentException("Custom field '" + key + "' must be a number, got: " + value, e);
+		}
+	}
+
+	static int getInt(final Map<String, Object> custom, final String key, final int defaultValue) {
+		return (int) getLong(custom, key, defaultValue);
+	}
+
+	static double getDouble(final Map<String, Object> custom, final String key, final double defaultValue) {
+		final Object value = custom == null ? null : custom.get(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(value.toString().trim());
+		} catch (final NumberFormatException e) {
+			throw new IllegalArgumentException("Custom field '" + key + "' must be a number, got: " + value, e);
+		}
+	}
+
+	static boolean getBoolean(final Map<String, Object> custom, final String key, final boolean defaultValue) {
+		final Object value = custom == null ? null : custom.get(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		return Boolean.parseBoolean(value.toString().trim());
+	}
+}
@@ -0,0 +1,138 @@
+package org.cloudifysource.esc.driver.provisioning.openstack.essex;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.config.ClientConfig;
+import com.sun.jersey.api.client.config.DefaultClientConfig;
+import com.sun.jersey.api.client.filter.LoggingFilter;
+import com.sun.jersey.client.apache.ApacheHttpClient;
+import com.sun.jersey.client.apache.ApacheHttpClientHandler;
+
+/**
+ * Creates the Jersey clients used to talk to Openstack, backed by a pool of keep-alive connections.
+ * All drivers of the same compute endpoint and settings share one client, so parallel provisioning reuses
+ * connections instead of paying a new TCP and TLS handshake per request.
+ *
+ * The pool is configured by the cloud custom fields openstack.http.maxConnectionsPerRoute,
+ * openstack.http.maxTotalConnections, openstack.http.connectTimeoutMillis, openstack.http.readTimeoutMillis
+ * and openstack.http.idleTimeoutMillis. A cloud that configures an endpoint differently from an earlier one
+ * gets a client of its own.
+ * All requests go through the {@link RequestGovernor} of the endpoint.
+ */
+public final class EssexClientFactory {
+
+	private static final String MAX_CONNECTIONS_PER_ROUTE = "openstack.http.maxConnectionsPerRoute";
+	private static final String MAX_TOTAL_CONNECTIONS = "openstack.http.maxTotalConnections";
+	private static final String CONNECT_TIMEOUT_MILLIS = "openstack.http.connectTimeoutMillis";
+	private static final String READ_TIMEOUT_MILLIS = "openstack.http.readTimeoutMillis";
+	private static final String IDLE_TIMEOUT_MILLIS = "openstack.http.idleTimeoutMillis";
+	private static final String WIRE_LOG = "openstack.wireLog";
+
+	private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+	private static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 100;
+	private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+	private static final int DEFAULT_READ_TIMEOUT_MILLIS = 120000;
+	private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60000;
+	private static final long IDLE_CHECK_INTERVAL_MILLIS = 5000;
+
+	private static final Logger logger = Logger.getLogger(EssexClientFactory.class.getName());
+
+	private static final ConcurrentMap<String, Client> CLIENTS = new ConcurrentHashMap<String, Client>();
+
+	// one evictor thread per distinct idle timeout, guarded by the class
+	private static final Map<Long, IdleConnectionTimeoutThread> IDLE_CONNECTION_EVICTORS =
+			new HashMap<Long, IdleConnectionTimeoutThread>();
+
+	private EssexClientFactory() {
+	}
+
+	/**
+	 * Returns the client shared by all drivers of the given endpoint and settings, creating it if needed.
+	 *
+	 * @param endpoint the compute endpoint.
+	 * @param custom the cloud custom map.
+	 * @return the shared client.
+	 */
+	public static Client getClient(final String endpoint, final Map<String, Object> custom) {
+		final int maxPerRoute =
+				CustomSettings.getInt(custom, MAX_CONNECTIONS_PER_ROUTE, DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
+		final int maxTotal = CustomSettings.getInt(custom, MAX_TOTAL_CONNECTIONS, DEFAULT_MAX_TOTAL_CONNECTIONS);
+		final int connectTimeout =
+				CustomSettings.getInt(custom, CONNECT_TIMEOUT_MILLIS, DEFAULT_CONNECT_TIMEOUT_MILLIS);
+		final int readTimeout = CustomSettings.getInt(custom, READ_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS);
+		final long idleTimeout = CustomSettings.getLong(custom, IDLE_TIMEOUT_MILLIS, DEFAULT_IDLE_TIMEOUT_MILLIS);
+		final boolean wireLog = CustomSettings.getBoolean(custom, WIRE_LOG, false);
+		final String key = endpoint + "|" + maxPerRoute + "|" + maxTotal + "|" + connectTimeout + "|" + readTimeout
+				+ "|" + idleTimeout + "|" + wireLog + "|" + RequestGovernor.getSettingsKey(custom);
+
+		Client client = CLIENTS.get(key);
+		if (client == null) {
+			synchronized (CLIENTS) {
+				client = CLIENTS.get(key);
+				if (client == null) {
+					client = createClient(endpoint, custom, maxPerRoute, maxTotal, connectTimeout, readTimeout,
+							idleTimeout, wireLog);
+					CLIENTS.put(key, client);
+				}
+			}
+		}
+		return client;
+	}
+
+	private static Client createClient(final String endpoint, final Map<String, Object> custom,
+			final int maxPerRoute, final int maxTotal, final int connectTimeout, final int readTimeout,
+			final long idleTimeout, final boolean wireLog) {
+
+		final MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
+		final HttpConnectionManagerParams params = connectionManager.getParams();
+		params.setDefaultMaxConnectionsPerHost(maxPerRoute);
+		params.setMaxTotalConnections(maxTotal);
+		params.setConnectionTimeout(connectTimeout);
+		params.setSoTimeout(readTimeout);
+		// a pooled connection may have been closed by the server while idle
+		params.setStaleCheckingEnabled(true);
+		evictIdleConnections(connectionManager, idleTimeout);
+
+		final ClientConfig config = new DefaultClientConfig();
+		final Client client = new ApacheHttpClient(
+				new ApacheHttpClientHandler(new HttpClient(connectionManager), config), config);
+		client.setConnectTimeout(connectTimeout);
+		client.setReadTimeout(readTimeout);
+		client.addFilter(new KeystoneTokenCache.InvalidationFilter());
+		if (wireLog) {
+			client.addFilter(new LoggingFilter(logger));
+		}
+		// added last so it runs first, pacing requests before they are logged or sent
+		client.addFilter(RequestGovernor.getGovernor(endpoint, custom));
+
+		logger.fine("Created pooled HTTP client for " + endpoint + " with " + maxPerRoute + " connections per route, "
+				+ maxTotal + " in total");
+		return client;
+	}
+
+	private static synchronized void evictIdleConnections(final MultiThreadedHttpConnectionManager connectionManager,
+			final long idleTimeout) {
+		// the evictor closes the idle connections of all its managers after the same timeout
+		IdleConnectionTimeoutThread evictor = IDLE_CONNECTION_EVICTORS.get(idleTimeout);
+		if (evictor == null) {
+			evictor = new IdleConnectionTimeoutThread();
+			evictor.setName("openstack-idle-connection-evictor-" + idleTimeout);
+			evictor.setDaemon(true);
+			evictor.setConnectionTimeout(idleTimeout);
+			evictor.setTimeoutInterval(Math.min(IDLE_CHECK_INTERVAL_MILLIS, Math.max(1, idleTimeout)));
+			evictor.start();
+			IDLE_CONNECTION_EVICTORS.put(idleTimeout, evictor);
+		}
+		evictor.addConnectionManager(connectionManager);
+	}
+}
@@ -4,6 +4,7 @@ import org.cloudifysource.esc.driver.provisioning.openstack.Node;
 
 public class EssexNode extends Node {
 	private String serverURL;
+	private long updated = -1;
 
 	public String getServerURL() {
 		return serverURL;
@@ -13,5 +14,16 @@ public class EssexNode extends Node {
 		this.serverURL = serverURL;
 	}
 
+	/**
+	 * @return the time the server was last changed, in epoch millis, or -1 if unknown.
+	 */
+	public long getUpdated() {
+		return updated;
+	}
+
+	public void setUpdated(long updated) {
+		this.updated = updated;
+	}
+
 
 }
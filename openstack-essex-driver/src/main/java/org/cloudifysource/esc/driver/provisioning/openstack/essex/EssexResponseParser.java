@@ -0,0 +1,372 @@
+package org.cloudifysource.esc.driver.provisioning.openstack.essex;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeConstants;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.cloudifysource.esc.driver.provisioning.openstack.FloatingIP;
+import org.cloudifysource.esc.driver.provisioning.openstack.OpenstackException;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+/**
+ * Reads Nova and Keystone responses straight from the entity stream, StAX for the XML responses and
+ * the Jackson streaming API for the JSON ones, without building an intermediate String or DOM.
+ * The factories are thread safe and every call uses its own stream reader, so the parser can be
+ * shared by all provisioning threads. Every method closes the stream it was given.
+ *
+ */
+public final class EssexResponseParser {
+
+	/**
+	 * Receives the servers of a response one at a time, as their elements end.
+	 */
+	private interface ServerHandler {
+
+		/**
+		 * @param node a server of the listing.
+		 */
+		void server(EssexNode node);
+	}
+
+	private static final Logger logger = Logger.getLogger(EssexResponseParser.class.getName());
+
+	private static final String MACHINE_STATUS_ACTIVE = "ACTIVE";
+	private static final String COMPUTE_SERVICE_NAME = "Compute Service";
+
+	private static final XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private EssexResponseParser() {
+	}
+
+	private static XMLInputFactory createXmlInputFactory() {
+		final XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		return factory;
+	}
+
+	/**
+	 * Parses a keystone /v2.0/tokens XML response.
+	 *
+	 * @param in the response entity.
+	 * @return the token, its expiry and the compute service endpoint.
+	 * @throws OpenstackException if the response could not be parsed.
+	 */
+	public static AuthInfo parseAuthInfo(final InputStream in)
+			throws OpenstackException {
+		XMLStreamReader reader = null;
+		try {
+			reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+			String token = null;
+			String expires = null;
+			String computeServiceURL = null;
+			boolean inComputeService = false;
+			while (reader.hasNext()) {
+				final int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					final String name = reader.getLocalName();
+					if ("token".equals(name)) {
+						token = reader.getAttributeValue(null, "id");
+						expires = reader.getAttributeValue(null, "expires");
+					} else if ("service".equals(name)) {
+						inComputeService = COMPUTE_SERVICE_NAME.equals(reader.getAttributeValue(null, "name"));
+					} else if ("endpoint".equals(name) && inComputeService && computeServiceURL == null) {
+						computeServiceURL = reader.getAttributeValue(null, "publicURL");
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT && "service".equals(reader.getLocalName())) {
+					inComputeService = false;
+				}
+			}
+			return new AuthInfo(token, computeServiceURL, parseTime(expires));
+		} catch (final XMLStreamException e) {
+			throw new OpenstackException("Failed to parse XML Response from server. Error was: " + e.getMessage(), e);
+		} finally {
+			close(reader, in);
+		}
+	}
+
+	/**
+	 * Parses a single server XML response, as returned by GET /servers/{id} and POST /servers.
+	 *
+	 * @param in the response entity.
+	 * @return the server.
+	 * @throws OpenstackException if the response could not be parsed or has no server.
+	 */
+	public static EssexNode parseServer(final InputStream in)
+			throws OpenstackException {
+		final List<EssexNode> nodes = new ArrayList<EssexNode>(1);
+		parseServers(in, new ServerHandler() {
+			public void server(final EssexNode node) {
+				nodes.add(node);
+			}
+		});
+		if (nodes.isEmpty()) {
+			throw new OpenstackException("Failed to parse XML Response from server. No server element found");
+		}
+		return nodes.get(0);
+	}
+
+	/**
+	 * Parses a /servers/detail XML response.
+	 *
+	 * @param in the response entity.
+	 * @return the servers.
+	 * @throws OpenstackException if the response could not be parsed.
+	 */
+	public static List<EssexNode> parseServers(final InputStream in)
+			throws OpenstackException {
+		final List<EssexNode> nodes = new LinkedList<EssexNode>();
+		parseServers(in, new ServerHandler() {
+			public void server(final EssexNode node) {
+				nodes.add(node);
+			}
+		});
+		return nodes;
+	}
+
+	/**
+	 * Parses any XML response holding server elements, handing each server to the handler as soon as
+	 * its element ends.
+	 *
+	 * @param in the response entity.
+	 * @param handler receives the servers.
+	 * @throws OpenstackException if the response could not be parsed.
+	 */
+	private static void parseServers(final InputStream in, final ServerHandler handler)
+			throws OpenstackException {
+		XMLStreamReader reader = null;
+		try {
+			reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+			EssexNode node = null;
+			List<String> addresses = null;
+			// depth relative to the current server element, links of images and flavors are nested deeper
+			int depth = 0;
+			while (reader.hasNext()) {
+				final int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					final String name = reader.getLocalName();
+					if (node == null) {
+						if ("server".equals(name)) {
+							node = new EssexNode();
+							addresses = new ArrayList<String>(2);
+							depth = 0;
+							node.setId(reader.getAttributeValue(null, "id"));
+							node.setStatus(nullToEmpty(reader.getAttributeValue(null, "status")));
+							node.setName(reader.getAttributeValue(null, "name"));
+							node.setUpdated(parseTime(reader.getAttributeValue(null, "updated")));
+						}
+						continue;
+					}
+					++depth;
+					if (depth == 1 && "link".equals(name) && "self".equals(reader.getAttributeValue(null, "rel"))) {
+						node.setServerURL(reader.getAttributeValue(null, "href"));
+					} else if ("ip".equals(name)) {
+						addresses.add(reader.getAttributeValue(null, "addr"));
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT && node != null) {
+					if (depth == 0) {
+						setAddresses(node, addresses);
+						handler.server(node);
+						node = null;
+					} else {
+						--depth;
+					}
+				}
+			}
+		} catch (final XMLStreamException e) {
+			throw new OpenstackException("Failed to parse XML Response from server. Error was: " + e.getMessage(), e);
+		} finally {
+			close(reader, in);
+		}
+	}
+
+	/**
+	 * We expect to get 2 IP addresses, public and private. Currently we get them both in an xml
+	 * under a private node attribute. this is expected to change.
+	 */
+	private static void setAddresses(final EssexNode node, final List<String> addresses) {
+		if (node.getStatus().equalsIgnoreCase(MACHINE_STATUS_ACTIVE) && !addresses.isEmpty()) {
+			node.setPrivateIp(addresses.get(0));
+			if (addresses.size() != 2) {
+				logger.fine("Public IP not yet set for server " + node.getId());
+			} else {
+				node.setPublicIp(addresses.get(1));
+			}
+		}
+	}
+
+	/**
+	 * Parses a GET /os-floating-ips JSON response.
+	 *
+	 * @param in the response entity.
+	 * @return the floating IPs.
+	 * @throws OpenstackException if the response could not be parsed.
+	 */
+	public static List<FloatingIP> parseFloatingIps(final InputStream in)
+			throws OpenstackException {
+		JsonParser parser = null;
+		try {
+			parser = JSON_FACTORY.createJsonParser(in);
+			final List<FloatingIP> floatingIps = new LinkedList<FloatingIP>();
+			expect(parser.nextToken(), JsonToken.START_OBJECT);
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				final String field = parser.getCurrentName();
+				final JsonToken value = parser.nextToken();
+				if ("floating_ips".equals(field) && value == JsonToken.START_ARRAY) {
+					while (parser.nextToken() == JsonToken.START_OBJECT) {
+						floatingIps.add(readFloatingIp(parser));
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+			return floatingIps;
+		} catch (final IOException e) {
+			throw new OpenstackException("Failed to parse JSON Response from server. Error was: " + e.getMessage(), e);
+		} finally {
+			close(parser, in);
+		}
+	}
+
+	/**
+	 * Parses a POST /os-floating-ips JSON response.
+	 *
+	 * @param in the response entity.
+	 * @return the allocated floating IP.
+	 * @throws OpenstackException if the response could not be parsed or has no floating IP.
+	 */
+	public static FloatingIP parseFloatingIp(final InputStream in)
+			throws OpenstackException {
+		JsonParser parser = null;
+		try {
+			parser = JSON_FACTORY.createJsonParser(in);
+			FloatingIP floatingIp = null;
+			expect(parser.nextToken(), JsonToken.START_OBJECT);
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				final String field = parser.getCurrentName();
+				final JsonToken value = parser.nextToken();
+				if ("floating_ip".equals(field) && value == JsonToken.START_OBJECT) {
+					floatingIp = readFloatingIp(parser);
+				} else {
+					parser.skipChildren();
+				}
+			}
+			if (floatingIp == null || floatingIp.getIp() == null) {
+				throw new OpenstackException("Failed to allocate floating IP - IP not found in response");
+			}
+			return floatingIp;
+		} catch (final IOException e) {
+			throw new OpenstackException("Failed to parse JSON Response from server. Error was: " + e.getMessage(), e);
+		} finally {
+			close(parser, in);
+		}
+	}
+
+	private static FloatingIP readFloatingIp(final JsonParser parser)
+			throws IOException {
+		final FloatingIP ip = new FloatingIP();
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			final String field = parser.getCurrentName();
+			final JsonToken value = parser.nextToken();
+			if (value == JsonToken.START_OBJECT || value == JsonToken.START_ARRAY) {
+				parser.skipChildren();
+				continue;
+			}
+			final String text = value == JsonToken.VALUE_NULL ? null : parser.getText();
+			if ("instance_id".equals(field)) {
+				ip.setInstanceId(text);
+			} else if ("ip".equals(field)) {
+				ip.setIp(text);
+			} else if ("fixed_ip".equals(field)) {
+				ip.setFixedIp(text);
+			} else if ("id".equals(field)) {
+				ip.setId(text);
+			}
+		}
+		return ip;
+	}
+
+	private static void expect(final JsonToken actual, final JsonToken expected)
+			throws IOException {
+		if (actual != expected) {
+			throw new IOException("Expected " + expected + " but got " + actual);
+		}
+	}
+
+	/**
+	 * Parses an ISO 8601 time as reported by Nova and Keystone.
+	 *
+	 * @param time the time attribute.
+	 * @return the time in epoch millis, or -1 if it is missing or malformed.
+	 */
+	static long parseTime(final String time) {
+		if (time == null || time.trim().length() == 0) {
+			return -1;
+		}
+		try {
+			final XMLGregorianCalendar calendar = DatatypeFactory.newInstance().newXMLGregorianCalendar(time.trim());
+			if (calendar.getTimezone() == DatatypeConstants.FIELD_UNDEFINED) {
+				// essex reports UTC times without a zone designator
+				calendar.setTimezone(0);
+			}
+			return calendar.toGregorianCalendar().getTimeInMillis();
+		} catch (final DatatypeConfigurationException e) {
+			logger.warning("Unable to parse time " + time + ": " + e.getMessage());
+			return -1;
+		} catch (final IllegalArgumentException e) {
+			logger.warning("Unable to parse time " + time + ": " + e.getMessage());
+			return -1;
+		}
+	}
+
+	private static String nullToEmpty(final String value) {
+		return value == null ? "" : value;
+	}
+
+	private static void close(final XMLStreamReader reader, final InputStream in) {
+		try {
+			if (reader != null) {
+				reader.close();
+			}
+		} catch (final XMLStreamException e) {
+			logger.log(Level.FINE, "Failed to close XML reader", e);
+		}
+		closeStream(in);
+	}
+
+	private static void close(final JsonParser parser, final InputStream in) {
+		try {
+			if (parser != null) {
+				parser.close();
+			}
+		} catch (final IOException e) {
+			logger.log(Level.FINE, "Failed to close JSON parser", e);
+		}
+		closeStream(in);
+	}
+
+	private static void closeStream(final InputStream in) {
+		try {
+			in.close();
+		} catch (final IOException e) {
+			logger.log(Level.FINE, "Failed to close response stream", e);
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package org.cloudifysource.esc.driver.provisioning.openstack.essex;
+
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.cloudifysource.esc.driver.provisioning.openstack.FloatingIP;
+
+/**
+ * Keeps floating IPs allocated ahead of demand, since the Essex API is slow to allocate them.
+ * A background task tops the pool up to its high watermark whenever it drops below the low watermark.
+ * If openstack.floatingIpPool.adoptUnassigned is set, unassigned IPs the tenant already owns are adopted
+ * before new ones are allocated. Detached IPs are returned to the pool instead of being deleted, as long as
+ * the pool is below its high watermark.
+ * Draining the pool deletes the IPs it allocated or that were detached from servers, but leaves adopted
+ * IPs that were never handed out to the tenant, since they may be reserved by other tools or users.
+ * A drained pool stops filling, deletes whatever a fill that was already running allocates, and is
+ * replaced by a new pool for the next driver of the tenant.
+ *
+ * A high watermark of 0 disables pooling: IPs are allocated on demand and deleted on release.
+ * Pools are shared by all drivers of the same compute endpoint, since floating IPs belong to the tenant.
+ * The pool does not keep the cloud calls of any driver: each caller passes its own, and a fill uses the
+ * calls of the caller that started it.
+ */
+public class FloatingIPPool {
+
+	/**
+	 * The cloud calls the pool relies on.
+	 */
+	public interface FloatingIPSource {
+
+		/**
+		 * @return a newly allocated floating IP.
+		 * @throws Exception .
+		 */
+		String allocate()
+				throws Exception;
+
+		/**
+		 * @return all floating IPs of the tenant.
+		 * @throws Exception .
+		 */
+		List<FloatingIP> list()
+				throws Exception;
+
+		/**
+		 * Deletes a floating IP.
+		 * @param ip the address.
+		 * @throws Exception .
+		 */
+		void delete(String ip)
+				throws Exception;
+	}
+
+	private static final String LOW_WATERMARK = "openstack.floatingIpPool.lowWatermark";
+	private static final String HIGH_WATERMARK = "openstack.floatingIpPool.highWatermark";
+	private static final String ADOPT_UNASSIGNED = "openstack.floatingIpPool.adoptUnassigned";
+
+	// how long a drain waits for a running fill to notice it
+	private static final long DRAIN_FILL_TIMEOUT_MILLIS = 60 * 1000;
+
+	private static final Logger logger = Logger.getLogger(FloatingIPPool.class.getName());
+
+	private static final ConcurrentMap<String, FloatingIPPool> POOLS = new ConcurrentHashMap<String, FloatingIPPool>();
+
+	private final String key;
+	private final int lowWatermark;
+	private final int highWatermark;
+	private final boolean adoptUnassigned;
+	private final LinkedList<String> available = new LinkedList<String>();
+	// pooled IPs that were adopted from the tenant and not handed out since
+	private final Set<String> adoptedIps = new HashSet<String>();
+	private final ExecutorService filler;
+	private boolean fillScheduled;
+	private boolean adopted;
+	private boolean drained;
+
+	FloatingIPPool(final String key, final int lowWatermark, final int highWatermark, final boolean adoptUnassigned) {
+		this.key = key;
+		this.adoptUnassigned = adoptUnassigned;
+		this.highWatermark = Math.max(0, highWatermark);
+		this.lowWatermark = Math.max(0, Math.min(lowWatermark, this.highWatermark));
+		this.filler = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, "floating-ip-pool-filler");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Returns the pool shared by all drivers of the given compute endpoint and tenant, creating it from the
+	 * cloud custom fields openstack.floatingIpPool.lowWatermark, openstack.floatingIpPool.highWatermark and
+	 * openstack.floatingIpPool.adoptUnassigned if it does not exist yet.
+	 *
+	 * @param key identifies the tenant.
+	 * @param custom the cloud custom map.
+	 * @param source the cloud calls of the caller, used for the first fill if the pool does not exist yet.
+	 * @return the shared pool.
+	 */
+	public static FloatingIPPool getPool(final String key, final Map<String, Object> custom,
+			final FloatingIPSource source) {
+		FloatingIPPool pool = POOLS.get(key);
+		if (pool == null) {
+			final int high = CustomSettings.getInt(custom, HIGH_WATERMARK, 0);
+			final int low = CustomSettings.getInt(custom, LOW_WATERMARK, high / 2);
+			final boolean adopt = CustomSettings.getBoolean(custom, ADOPT_UNASSIGNED, false);
+			final FloatingIPPool newPool = new FloatingIPPool(key, low, high, adopt);
+			pool = POOLS.putIfAbsent(key, newPool);
+			if (pool == null) {
+				pool = newPool;
+				pool.scheduleFill(source);
+			} else {
+				newPool.filler.shutdown();
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * Takes an IP from the pool, allocating one right away if the pool is empty.
+	 *
+	 * @param source the cloud calls of the caller.
+	 * @return the floating IP.
+	 * @throws Exception if a new IP could not be allocated.
+	 */
+	public String acquire(final FloatingIPSource source)
+			throws Exception {
+		String ip;
+		synchronized (this) {
+			ip = available.poll();
+			// once handed out, an adopted IP is managed like the ones the pool allocated
+			adoptedIps.remove(ip);
+			if (available.size() < lowWatermark) {
+				scheduleFill(source);
+			}
+		}
+		if (ip == null) {
+			if (highWatermark > 0) {
+				logger.info("Floating IP pool is empty, allocating an IP on demand");
+			}
+			ip = source.allocate();
+		}
+		return ip;
+	}
+
+	/**
+	 * Returns a detached IP to the pool, or deletes it if the pool is full.
+	 *
+	 * @param ip the floating IP.
+	 * @param source the cloud calls of the caller.
+	 * @throws Exception if the IP could not be deleted.
+	 */
+	public void release(final String ip, final FloatingIPSource source)
+			throws Exception {
+		synchronized (this) {
+			if (!drained && available.size() < highWatermark && !available.contains(ip)) {
+				available.add(ip);
+				return;
+			}
+		}
+		source.delete(ip);
+	}
+
+	/**
+	 * Deletes the pooled IPs, except adopted ones that were never handed out, which are left unassigned.
+	 * Stops filling the pool and waits a while for a fill that is already running.
+	 * Used when the whole cloud is torn down.
+	 *
+	 * @param source the cloud calls of the caller.
+	 */
+	public void drain(final FloatingIPSource source) {
+		synchronized (this) {
+			drained = true;
+		}
+		POOLS.remove(key, this);
+		filler.shutdown();
+		try {
+			if (!filler.awaitTermination(DRAIN_FILL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+				logger.warning("The floating IP pool is still being filled, the IPs it allocates will be deleted");
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		final List<String> toDelete;
+		synchronized (this) {
+			toDelete = new LinkedList<String>(available);
+			toDelete.removeAll(adoptedIps);
+			available.clear();
+			adoptedIps.clear();
+		}
+		for (final String ip : toDelete) {
+			try {
+				source.delete(ip);
+			} catch (final Exception e) {
+				logger.log(Level.WARNING, "Failed to delete pooled floating IP " + ip + ". It may be leaking.", e);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of IPs ready to be handed out.
+	 */
+	public synchronized int size() {
+		return available.size();
+	}
+
+	private synchronized void scheduleFill(final FloatingIPSource source) {
+		if (fillScheduled || drained || highWatermark == 0) {
+			return;
+		}
+		fillScheduled = true;
+		filler.execute(new Runnable() {
+			public void run() {
+				try {
+					fill(source);
+				} finally {
+					synchronized (FloatingIPPool.this) {
+						fillScheduled = false;
+					}
+				}
+			}
+		});
+	}
+
+	private void fill(final FloatingIPSource source) {
+		try {
+			if (adoptUnassigned && !isAdopted()) {
+				adoptUnassigned(source);
+			}
+			while (true) {
+				synchronized (this) {
+					if (drained || available.size() >= highWatermark) {
+						return;
+					}
+				}
+				final String ip = source.allocate();
+				final boolean kept;
+				synchronized (this) {
+					kept = !drained;
+					if (kept) {
+						available.add(ip);
+					}
+				}
+				if (!kept) {
+					// drained while the IP was being allocated
+					source.delete(ip);
+					return;
+				}
+			}
+		} catch (final Exception e) {
+			logger.log(Level.WARNING, "Failed to fill the floating IP pool: " + e.getMessage()
+					+ ". IPs will be allocated on demand.", e);
+		}
+	}
+
+	private synchronized boolean isAdopted() {
+		return adopted;
+	}
+
+	private void adoptUnassigned(final FloatingIPSource source)
+			throws Exception {
+		final List<FloatingIP> floatingIPs = source.list();
+		synchronized (this) {
+			for (final FloatingIP floatingIP : floatingIPs) {
+				if (drained || available.size() >= highWatermark) {
+					break;
+				}
+				if (floatingIP.getInstanceId() == null && !available.contains(floatingIP.getIp())) {
+					logger.fine("Adopting unassigned floating IP " + floatingIP.getIp());
+					available.add(floatingIP.getIp());
+					adoptedIps.add(floatingIP.getIp());
+				}
+			}
+			adopted = true;
+		}
+	}
+}
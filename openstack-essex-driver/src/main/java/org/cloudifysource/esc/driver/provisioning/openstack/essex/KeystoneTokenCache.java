@@ -0,0 +1,262 @@
+package org.cloudifysource.esc.driver.provisioning.openstack.essex;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.cloudifysource.esc.driver.provisioning.openstack.OpenstackException;
+
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientRequest;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.filter.ClientFilter;
+
+/**
+ * Caches keystone tokens so that all driver instances using the same identity endpoint and credentials
+ * share one login instead of POSTing to /v2.0/tokens on every request.
+ * The token is refreshed in the background shortly before it expires, concurrent callers that find
+ * no valid token wait on a single in-flight login, and a token the cloud rejects with a 401 is dropped
+ * so the next caller logs in again.
+ * The cache does not keep the login of any driver: each caller passes its own, and the background refresh
+ * uses the login of the most recent caller, so a driver that is gone is not kept alive by the cache.
+ *
+ */
+public class KeystoneTokenCache {
+
+	static final String AUTH_TOKEN_HEADER = "X-Auth-Token";
+
+	private static final int HTTP_UNAUTHORIZED = 401;
+	// refresh this long before keystone expires the token
+	private static final long REFRESH_AHEAD_MILLIS = 5 * 60 * 1000; // 5 minutes
+	// never hand out a token that expires within this margin
+	private static final long EXPIRY_MARGIN_MILLIS = 30 * 1000; // 30 seconds
+	// used when keystone does not report an expiry
+	private static final long DEFAULT_TOKEN_LIFETIME_MILLIS = 60 * 60 * 1000; // 1 hour
+
+	private static final Logger logger = Logger.getLogger(KeystoneTokenCache.class.getName());
+
+	private static final ConcurrentMap<String, KeystoneTokenCache> CACHES =
+			new ConcurrentHashMap<String, KeystoneTokenCache>();
+
+	private static final ScheduledExecutorService REFRESHER =
+			Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(final Runnable r) {
+					final Thread thread = new Thread(r, "keystone-token-refresher");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private volatile AuthInfo authInfo;
+	private volatile long validUntil;
+	// login of the last caller of the current token, null until one used it, so idle caches stop refreshing
+	private volatile Callable<AuthInfo> accessedBy;
+	private FutureTask<AuthInfo> inflight;
+	private ScheduledFuture<?> scheduledRefresh;
+
+	KeystoneTokenCache() {
+	}
+
+	/**
+	 * Returns the cache shared by all callers of the given identity endpoint, tenant and credentials.
+	 *
+	 * @param identityEndpoint keystone endpoint.
+	 * @param tenant .
+	 * @param username .
+	 * @param password .
+	 * @return the shared cache.
+	 */
+	public static KeystoneTokenCache getCache(final String identityEndpoint, final String tenant,
+			final String username, final String password) {
+		// the key outlives the driver, so it holds a digest of the credentials rather than the password
+		final String key = identityEndpoint + "|" + tenant + "|" + digest(username + "|" + password);
+		KeystoneTokenCache cache = CACHES.get(key);
+		if (cache == null) {
+			final KeystoneTokenCache newCache = new KeystoneTokenCache();
+			cache = CACHES.putIfAbsent(key, newCache);
+			if (cache == null) {
+				cache = newCache;
+			}
+		}
+		return cache;
+	}
+
+	private static String digest(final String credentials) {
+		try {
+			final byte[] hash = MessageDigest.getInstance("SHA-256").digest(credentials.getBytes("UTF-8"));
+			final StringBuilder hex = new StringBuilder(hash.length * 2);
+			for (final byte b : hash) {
+				hex.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+			}
+			return hex.toString();
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		} catch (final UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 is not available", e);
+		}
+	}
+
+	/**
+	 * Drops the given token from every cache holding it. Called when the cloud rejects the token.
+	 *
+	 * @param token the rejected token.
+	 */
+	public static void invalidateToken(final String token) {
+		for (final KeystoneTokenCache cache : CACHES.values()) {
+			cache.invalidate(token);
+		}
+	}
+
+	/**
+	 * Returns a valid token, logging in only if no valid token is cached.
+	 *
+	 * @param loader performs the actual keystone login of the caller.
+	 * @return the authentication info.
+	 * @throws OpenstackException if the login failed.
+	 */
+	public AuthInfo get(final Callable<AuthInfo> loader) throws OpenstackException {
+		accessedBy = loader;
+		final AuthInfo current = this.authInfo;
+		if (current != null && System.currentTimeMillis() < validUntil) {
+			return current;
+		}
+		return refresh(current, loader);
+	}
+
+	/**
+	 * @return the cached authentication info, even if it expired, or null if there is none. Never logs in.
+	 */
+	public AuthInfo peek() {
+		return this.authInfo;
+	}
+
+	/**
+	 * Drops the cached token if it is the given one.
+	 *
+	 * @param token the rejected token.
+	 */
+	public synchronized void invalidate(final String token) {
+		if (authInfo != null && authInfo.getToken() != null && authInfo.getToken().equals(token)) {
+			logger.info("Keystone token was rejected by the cloud, it will be renewed on next use");
+			authInfo = null;
+			validUntil = 0;
+			if (scheduledRefresh != null) {
+				scheduledRefresh.cancel(false);
+				scheduledRefresh = null;
+			}
+		}
+	}
+
+	private AuthInfo refresh(final AuthInfo stale, final Callable<AuthInfo> loader) throws OpenstackException {
+		final FutureTask<AuthInfo> task;
+		boolean owner = false;
+		synchronized (this) {
+			// another caller may have completed a login while we were waiting for the lock
+			if (authInfo != null && authInfo != stale && System.currentTimeMillis() < validUntil) {
+				return authInfo;
+			}
+			if (inflight == null) {
+				inflight = new FutureTask<AuthInfo>(new Callable<AuthInfo>() {
+					public AuthInfo call()
+							throws Exception {
+						return load(loader);
+					}
+				});
+				owner = true;
+			}
+			task = inflight;
+		}
+
+		if (owner) {
+			task.run();
+		}
+
+		try {
+			return task.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new OpenstackException("Interrupted while waiting for keystone authentication", e);
+		} catch (final ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof OpenstackException) {
+				throw (OpenstackException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new OpenstackException("Failed to authenticate with keystone: " + cause.getMessage(), cause);
+		}
+	}
+
+	private AuthInfo load(final Callable<AuthInfo> loader)
+			throws Exception {
+		try {
+			final AuthInfo newAuthInfo = loader.call();
+			final long now = System.currentTimeMillis();
+			final long expires = newAuthInfo.getExpires() > 0 ? newAuthInfo.getExpires()
+					: now + DEFAULT_TOKEN_LIFETIME_MILLIS;
+			synchronized (this) {
+				this.authInfo = newAuthInfo;
+				this.validUntil = expires - EXPIRY_MARGIN_MILLIS;
+				this.accessedBy = null;
+				scheduleRefresh(Math.max(0, expires - REFRESH_AHEAD_MILLIS - now));
+			}
+			return newAuthInfo;
+		} finally {
+			synchronized (this) {
+				inflight = null;
+			}
+		}
+	}
+
+	private void scheduleRefresh(final long delayMillis) {
+		if (scheduledRefresh != null) {
+			scheduledRefresh.cancel(false);
+		}
+		scheduledRefresh = REFRESHER.schedule(new Runnable() {
+			public void run() {
+				final Callable<AuthInfo> loader = accessedBy;
+				if (loader == null) {
+					// nobody used the token since it was issued, let it expire and log in lazily
+					return;
+				}
+				try {
+					refresh(authInfo, loader);
+				} catch (final Exception e) {
+					logger.log(Level.WARNING, "Background refresh of keystone token failed: " + e.getMessage(), e);
+				}
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Client filter that invalidates the token of any request the cloud answers with a 401.
+	 */
+	public static class InvalidationFilter extends ClientFilter {
+
+		@Override
+		public ClientResponse handle(final ClientRequest request)
+				throws ClientHandlerException {
+			final ClientResponse response = getNext().handle(request);
+			if (response.getStatus() == HTTP_UNAUTHORIZED) {
+				final Object token = request.getHeaders().getFirst(AUTH_TOKEN_HEADER);
+				if (token != null) {
+					invalidateToken(token.toString());
+				}
+			}
+			return response;
+		}
+	}
+}
@@ -1,33 +1,33 @@
 package org.cloudifysource.esc.driver.provisioning.openstack.essex;
 
 
-import java.io.IOException;
-import java.io.StringReader;
-import java.net.ConnectException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.ws.rs.core.MediaType;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathException;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 
 import org.apache.commons.lang.StringUtils;
 import org.cloudifysource.dsl.cloud.Cloud;
@@ -39,21 +39,10 @@ import org.cloudifysource.esc.driver.provisioning.ProvisioningDriver;
 import org.cloudifysource.esc.driver.provisioning.openstack.FloatingIP;
 import org.cloudifysource.esc.driver.provisioning.openstack.Node;
 import org.cloudifysource.esc.driver.provisioning.openstack.OpenstackException;
-import org.codehaus.jackson.map.ObjectMapper;
-import org.w3c.dom.Document;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 import com.sun.jersey.api.client.Client;
-import com.sun.jersey.api.client.ClientHandlerException;
-import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.UniformInterfaceException;
 import com.sun.jersey.api.client.WebResource;
-import com.sun.jersey.api.client.ClientResponse.Status;
-import com.sun.jersey.api.client.config.ClientConfig;
-import com.sun.jersey.api.client.config.DefaultClientConfig;
-import com.sun.jersey.api.client.filter.LoggingFilter;
 import com.sun.jersey.core.util.Base64;
 
 /**
@@ -70,70 +59,97 @@ import com.sun.jersey.core.util.Base64;
 public class OpenstackEssexDriver extends CloudDriverSupport implements ProvisioningDriver {
 
 	private static final String MACHINE_STATUS_ACTIVE = "ACTIVE";
+	private static final String MACHINE_STATUS_DELETED = "DELETED";
 	private static final int HTTP_NOT_FOUND = 404;
 	private static final int INTERNAL_SERVER_ERROR = 500;
-	private static final int SERVER_POLLING_INTERVAL_MILLIS = 10 * 1000; // 10 seconds
+	private static final int READINESS_RETRY_INTERVAL_MILLIS = 3 * 1000; // 3 seconds
+	private static final String DEFAULT_READINESS_PORT = "7777";
+	private static final String DEFAULT_SSH_PORT = "22";
+	private static final String DEFAULT_READINESS_CONNECT_TIMEOUT_MILLIS = "5000";
 	private static final int DEFAULT_SHUTDOWN_TIMEOUT_MILLIS = 5 * 60 * 1000; // 5 minutes
-	private static final int DEFAULT_TIMEOUT_AFTER_CLOUD_INTERNAL_ERROR = 30 * 1000; // 30 seconds
+	private static final int MAX_TERMINATION_THREADS = 10;
+	private static final int PROVISIONING_THREADS = 16;
+	private static final int SERVER_PAGE_SIZE = 100;
+	// the stages of a start time out on their own at the deadline, give their failure time to arrive
+	private static final long ASYNC_RESULT_GRACE_MILLIS = 10 * 1000;
 	private static final String OPENSTACK_OPENSTACK_IDENTITY_ENDPOINT = "openstack.identity.endpoint";
-	private static final String OPENSTACK_WIRE_LOG = "openstack.wireLog";
 	private static final String OPENSTACK_KEY_PAIR = "openstack.keyPair";
 	private static final String OPENSTACK_SECURITYGROUP = "openstack.securityGroup";
+	private static final String OPENSTACK_READINESS_TYPE = "openstack.readiness.type";
+	private static final String OPENSTACK_READINESS_PORT = "openstack.readiness.port";
+	private static final String OPENSTACK_READINESS_PATH = "openstack.readiness.path";
+	private static final String OPENSTACK_READINESS_CONNECT_TIMEOUT = "openstack.readiness.connectTimeoutMillis";
+	private static final String OPENSTACK_WARM_POOL_SIZE = "openstack.warmPool.size";
+	private static final int WARM_POOL_START_TIMEOUT_MILLIS = 15 * 60 * 1000; // 15 minutes
 	private static final String OPENSTACK_OPENSTACK_ENDPOINT = "openstack.endpoint";
 	private static final String OPENSTACK_TENANT = "openstack.tenant";
 	private static final String OPENSTACK_USERNAME = "openstack.username";
 	private static final String OPENSTACK_PASSWORD = "openstack.password";
 
 	private static final String STARTING_THROTTLING = "The cloud reported an Internal Server Error (status 500)."
-			+ " Requests for new machines will be suspended for "
-			+ DEFAULT_TIMEOUT_AFTER_CLOUD_INTERNAL_ERROR / 1000 + " seconds";
+			+ " Requests to the cloud will be suspended until it recovers";
 	private static final String RUNNING_THROTTLING = "Requests for new machines are currently suspended";
 	
-	private final XPath xpath = XPathFactory.newInstance().newXPath();
+	// runs the stages of the asynchronous starts and stops of all drivers
+	private static final ExecutorService PROVISIONING_EXECUTOR = Executors.newFixedThreadPool(PROVISIONING_THREADS,
+			new ThreadFactory() {
+				private final AtomicLong threadCount = new AtomicLong();
+
+				public Thread newThread(final Runnable r) {
+					final Thread thread = new Thread(r, "essex-provisioning-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	// suffixes server names, so two starts in the same millisecond do not share a name
+	private static final AtomicLong SERVER_NAME_SEQUENCE = new AtomicLong();
 
-	private final Client client;
+	private Client client;
 
-	private long throttlingTimeout = -1;
 	private String serverNamePrefix;
 	private String tenant;
 	private String username;
 	private String password;
 	private String endpoint;
-	private WebResource service;
 	
 	private String identityEndpoint;
-	private final DocumentBuilderFactory dbf;
-	private final Object xmlFactoryMutex = new Object();
+	private KeystoneTokenCache tokenCache;
+	// passed to the shared token cache and floating IP pool on each call, so they never hold on to this driver
+	private Callable<AuthInfo> tokenLoader;
+	private PollingSchedule pollingSchedule;
+	private FloatingIPPool floatingIpPool;
+	private FloatingIPPool.FloatingIPSource floatingIpSource;
+	private RequestGovernor governor;
+	private RetryPolicy retryPolicy;
+	private volatile WarmStandbyPool warmPool;
+	private volatile ServerStatusWatcher statusWatcher;
+	private ServerInventory inventory;
+	private volatile ReadinessProbeEngine readinessProbe;
+	// private and floating IPs of known servers, so stopMachine can resolve an IP without listing the tenant
+	private final ConcurrentMap<String, ServerInfo> serversByIp = new ConcurrentHashMap<String, ServerInfo>();
+	// floating IPs by address, so deleting an IP does not need to list all of them
+	private final ConcurrentMap<String, FloatingIP> floatingIpsByAddress = new ConcurrentHashMap<String, FloatingIP>();
+	private final AtomicLong floatingIpListings = new AtomicLong();
+	private final Object floatingIpListingMutex = new Object();
 
 
 	/************
 	 * Constructor.
-	 * 
-	 * @throws ParserConfigurationException
 	 */
 	public OpenstackEssexDriver() {
-		dbf = DocumentBuilderFactory.newInstance();
-		dbf.setNamespaceAware(false);
-
-		final ClientConfig config = new DefaultClientConfig();
-		this.client = Client.create(config);
-
-	}
-
-	private DocumentBuilder createDocumentBuilder() {
-		synchronized (xmlFactoryMutex) {
-			// Document builder is not guaranteed to be thread sage
-			try {
-				// Document builders are not thread safe
-				return dbf.newDocumentBuilder();
-			} catch (final ParserConfigurationException e) {
-				throw new IllegalStateException("Failed to set up XML Parser", e);
-			}
-		}
 
 	}
 
 	public void close() {
+		drainWarmPool();
+		// boots still in flight get an IllegalStateException from the closed engines and clean up after
+		// themselves. setConfig creates new engines if the driver is configured again.
+		if (statusWatcher != null) {
+			statusWatcher.close();
+		}
+		if (readinessProbe != null) {
+			readinessProbe.close();
+		}
 	}
 
 
@@ -173,7 +189,8 @@ public class OpenstackEssexDriver extends CloudDriverSupport implements Provisio
 		if (this.endpoint == null) {
 			throw new IllegalArgumentException("Custom field '" + OPENSTACK_OPENSTACK_ENDPOINT + "' must be set");
 		}
-		this.service = client.resource(this.endpoint);
+		this.governor = RequestGovernor.getGovernor(this.endpoint, this.cloud.getCustom());
+		this.client = EssexClientFactory.getClient(this.endpoint, this.cloud.getCustom());
 
 		this.identityEndpoint = (String) this.cloud.getCustom().get(OPENSTACK_OPENSTACK_IDENTITY_ENDPOINT);
 		if (this.identityEndpoint == null) {
@@ -181,45 +198,413 @@ public class OpenstackEssexDriver extends CloudDriverSupport implements Provisio
 					+ "' must be set");
 		}
 
-		final String wireLog = (String) this.cloud.getCustom().get(OPENSTACK_WIRE_LOG);
-		if (wireLog != null) {
-			if (Boolean.parseBoolean(wireLog)) {
-				this.client.addFilter(new LoggingFilter(logger));
+		this.tokenCache = KeystoneTokenCache.getCache(this.identityEndpoint, this.tenant, this.username,
+				this.password);
+		this.tokenLoader = new Callable<AuthInfo>() {
+			public AuthInfo call()
+					throws Exception {
+				return createAuthenticationToken();
+			}
+		};
+
+		this.pollingSchedule = PollingSchedule.fromCustom(this.cloud.getCustom());
+		this.retryPolicy = RetryPolicy.fromCustom(this.cloud.getCustom());
+		if (this.inventory == null) {
+			this.inventory = new ServerInventory(new ServerInventory.ServerFetcher() {
+				public List<Node> fetch(final String changesSince)
+						throws Exception {
+					final AuthInfo authInfo = getAuthInfo();
+					WebResource servers = client.resource(authInfo.getComputeServiceEndpointURL()).path("/servers/detail");
+					if (changesSince != null) {
+						servers = servers.queryParam("changes-since", changesSince);
+					}
+					// Nova cuts unpaged listings at osapi_max_limit, the servers past it would look deleted
+					return getAllServers(servers, authInfo);
+				}
+			});
+		}
+		if (this.statusWatcher == null || this.statusWatcher.isClosed()) {
+			this.statusWatcher = new ServerStatusWatcher(new ServerStatusWatcher.ServerSource() {
+				public List<Node> listServers()
+						throws Exception {
+					return OpenstackEssexDriver.this.listServers(getAuthInfo());
+				}
+			});
+		}
+		if (this.readinessProbe == null || this.readinessProbe.isClosed()) {
+			this.readinessProbe = new ReadinessProbeEngine();
+		}
+
+		this.floatingIpSource = new FloatingIPPool.FloatingIPSource() {
+			public String allocate()
+					throws Exception {
+				return allocateFloatingIP(getAuthInfo());
+			}
+
+			public List<FloatingIP> list()
+					throws Exception {
+				return listFloatingIPs(getAuthInfo());
+			}
+
+			public void delete(final String ip)
+					throws Exception {
+				deleteFloatingIP(ip, getAuthInfo());
 			}
+		};
+		this.floatingIpPool = FloatingIPPool.getPool(this.identityEndpoint + "|" + this.tenant,
+				this.cloud.getCustom(), this.floatingIpSource);
+
+		drainWarmPool();
+		final int warmPoolSize = CustomSettings.getInt(this.template.getOptions(), OPENSTACK_WARM_POOL_SIZE, 0);
+		if (!this.management && warmPoolSize > 0) {
+			this.warmPool = new WarmStandbyPool(templateName, warmPoolSize, new WarmStandbyPool.MachineSource() {
+				public MachineDetails start()
+						throws Exception {
+					final long endTime = calcEndTimeInMillis(WARM_POOL_START_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+					return awaitMachine(new ServerBoot(endTime, template).start(), endTime);
+				}
+
+				public void stop(final MachineDetails machine)
+						throws Exception {
+					final AuthInfo authInfo = getAuthInfo();
+					terminateServer(new ServerInfo(machine.getMachineId(), authInfo.getComputeServiceEndpointURL()
+							+ "/servers/" + machine.getMachineId(), machine.getPublicAddress()), authInfo,
+							calcEndTimeInMillis(DEFAULT_SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+				}
+			});
 		}
+	}
 
+	private void drainWarmPool() {
+		final WarmStandbyPool pool = this.warmPool;
+		if (pool != null) {
+			this.warmPool = null;
+			pool.drain();
+		}
 	}
 
 
 	public MachineDetails startMachine(final long duration, final TimeUnit unit)
 			throws TimeoutException, CloudProvisioningException {
-		
+		final long endTime = calcEndTimeInMillis(duration, unit);
+		return awaitMachine(startMachineAsync(duration, unit), endTime);
+	}
+
+	/**
+	 * Starts a machine without blocking the caller. Machines of the warm standby pool are handed out
+	 * right away; otherwise the create request, the wait for ACTIVE, the floating IP and the readiness
+	 * check run as stages on a shared provisioning executor, and no thread is held while waiting between them.
+	 *
+	 * @param duration the time to wait for the machine.
+	 * @param unit the unit of the duration.
+	 * @return a result completed with the machine once it is ready. It fails with a CloudProvisioningException,
+	 *         or a TimeoutException if the machine was not ready in time. Cancelling it shuts down the half
+	 *         built server.
+	 */
+	public AsyncResult<MachineDetails> startMachineAsync(final long duration, final TimeUnit unit) {
+		final WarmStandbyPool pool = this.warmPool;
+		if (pool != null) {
+			final MachineDetails pooled = pool.take();
+			if (pooled != null) {
+				logger.info("Handing out machine " + pooled.getMachineId() + " from the warm standby pool");
+				final AsyncResult<MachineDetails> result = new AsyncResult<MachineDetails>();
+				result.complete(pooled);
+				return result;
+			}
+		}
+
+		if (isThrottling()) {
+			final AsyncResult<MachineDetails> result = new AsyncResult<MachineDetails>();
+			result.fail(new CloudProvisioningException(RUNNING_THROTTLING));
+			return result;
+		}
+
+		return new ServerBoot(calcEndTimeInMillis(duration, unit), this.template).start();
+	}
+
+	/**
+	 * Waits for an asynchronous start, cancelling it if the caller gives up.
+	 */
+	private MachineDetails awaitMachine(final AsyncResult<MachineDetails> boot, final long endTime)
+			throws TimeoutException, CloudProvisioningException {
+		try {
+			return boot.await(endTime + ASYNC_RESULT_GRACE_MILLIS);
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof TimeoutException) {
+				throw (TimeoutException) e.getCause();
+			}
+			if (e.getCause() instanceof CloudProvisioningException) {
+				throw (CloudProvisioningException) e.getCause();
+			}
+			throw new CloudProvisioningException(e.getCause());
+		} catch (final TimeoutException e) {
+			boot.cancel(false);
+			throw e;
+		} catch (final InterruptedException e) {
+			boot.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new CloudProvisioningException("Interrupted while starting a machine", e);
+		}
+	}
+
+	/**
+	 * Wraps a failed cloud call, telling the caller when requests are suspended because the cloud is failing.
+	 */
+	private CloudProvisioningException toProvisioningException(final Exception e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof RequestGovernor.CircuitOpenException) {
+				return new CloudProvisioningException(RUNNING_THROTTLING, e);
+			}
+			if (cause instanceof UniformInterfaceException
+					&& ((UniformInterfaceException) cause).getResponse().getStatus() == INTERNAL_SERVER_ERROR) {
+				return new CloudProvisioningException(STARTING_THROTTLING, e);
+			}
+		}
+		return new CloudProvisioningException(e);
+	}
+
+	/**
+	 * Starts several machines of the current template with a single multi-create request, and waits for
+	 * all of them on the shared status watcher. Members that fail to start are shut down,
+	 * so the result may hold fewer machines than requested.
+	 *
+	 * @param count the number of machines to start.
+	 * @param duration the time to wait for the machines.
+	 * @param unit the unit of the duration.
+	 * @return the machines that started and are ready.
+	 * @throws TimeoutException if no machine was ready in time.
+	 * @throws CloudProvisioningException if no machine could be started.
+	 */
+	public MachineDetails[] startMachines(final int count, final long duration, final TimeUnit unit)
+			throws TimeoutException, CloudProvisioningException {
+		if (count < 1) {
+			throw new IllegalArgumentException("The number of machines to start must be positive, got: " + count);
+		}
 		if (isThrottling()) {
 			throw new CloudProvisioningException(RUNNING_THROTTLING);
 		}
 
-		final long endTime = System.currentTimeMillis() + unit.toMillis(duration);
+		final long endTime = calcEndTimeInMillis(duration, unit);
 
 		AuthInfo authInfo;
 		try {
-			authInfo = createAuthenticationToken();
+			authInfo = getAuthInfo();
 		} catch (OpenstackException ose) {
-			throw new CloudProvisioningException(ose);	
+			throw toProvisioningException(ose);
 		}
-		MachineDetails md;
+
+		final String serverName = newServerName(this.template);
 		try {
-			md = newServer(authInfo, endTime, this.template);
+			postServers(authInfo, serverName, this.template, count, endTime);
 		} catch (final Exception e) {
-			if (e instanceof UniformInterfaceException 
-					&& ((UniformInterfaceException) e).getResponse().getStatus() == INTERNAL_SERVER_ERROR) {
-				throttlingTimeout = calcEndTimeInMillis(DEFAULT_TIMEOUT_AFTER_CLOUD_INTERNAL_ERROR, 
-						TimeUnit.MILLISECONDS);
-				throw new CloudProvisioningException(STARTING_THROTTLING, e);
-			} else {
-				throw new CloudProvisioningException(e);	
+			throw toProvisioningException(e);
+		}
+
+		try {
+			return waitForServers(serverName, count, authInfo, endTime, this.template);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CloudProvisioningException("Interrupted while starting machines", e);
+		} catch (final RuntimeException e) {
+			// such as a connection failure, or requests being suspended by the governor
+			throw toProvisioningException(e);
+		}
+	}
+
+	/**
+	 * Waits for the servers of a multi-create request. The members are found with one listing, since Nova
+	 * records all instances of the request before answering it, and their status is then watched by the
+	 * shared status watcher. Once the active members are known, floating IPs are attached to all of them
+	 * in parallel and they are probed at once. Members that are not ready are shut down whatever happens,
+	 * including the ones that already have a floating IP.
+	 */
+	private MachineDetails[] waitForServers(final String serverName, final int count, final AuthInfo authInfo,
+			final long endTime, final CloudTemplate serverTemplate)
+			throws TimeoutException, CloudProvisioningException, InterruptedException {
+
+		final String imageId = serverTemplate.getImageId();
+		final long waitStart = System.currentTimeMillis();
+
+		final Map<String, ServerInfo> members = new LinkedHashMap<String, ServerInfo>();
+		final Map<String, AsyncResult<EssexNode>> watches = new LinkedHashMap<String, AsyncResult<EssexNode>>();
+		final Map<String, Future<String>> attachments = new LinkedHashMap<String, Future<String>>();
+		// written by the attach tasks, so the shutdown of failed members also detaches their IPs
+		final ConcurrentMap<String, String> attachedIps = new ConcurrentHashMap<String, String>();
+		final Map<String, AsyncResult<Void>> probes = new LinkedHashMap<String, AsyncResult<Void>>();
+		final List<MachineDetails> machines = new ArrayList<MachineDetails>(count);
+		Exception firstException = null;
+
+		try {
+			for (final Node node : listServersByName(authInfo, serverName)) {
+				// the name filter is a regular expression on the server side, check the exact name here
+				if (!serverName.equals(node.getName())) {
+					continue;
+				}
+				if (members.size() >= count) {
+					logger.warning("Ignoring server " + node.getId() + " named " + serverName
+							+ ", already tracking " + count + " servers of that name");
+					continue;
+				}
+				members.put(node.getId(), new ServerInfo(node.getId(), ((EssexNode) node).getServerURL(), null));
+			}
+			if (members.isEmpty()) {
+				throw new OpenstackException("No server named " + serverName + " was created");
+			}
+
+			for (final String id : members.keySet()) {
+				final AsyncResult<EssexNode> watch = statusWatcher.watch(id, MACHINE_STATUS_ACTIVE,
+						pollingSchedule.startBoot(imageId), endTime);
+				watch.addListener(new Runnable() {
+					public void run() {
+						if (watch.isSuccess()) {
+							PollingSchedule.recordBootTime(imageId, System.currentTimeMillis() - waitStart);
+						}
+					}
+				});
+				watches.put(id, watch);
+			}
+
+			final Map<String, EssexNode> activeMembers = new LinkedHashMap<String, EssexNode>();
+			for (final Map.Entry<String, AsyncResult<EssexNode>> watch : watches.entrySet()) {
+				try {
+					activeMembers.put(watch.getKey(), awaitStatus(watch.getValue(), endTime));
+				} catch (final OpenstackException e) {
+					logger.warning("Server " + watch.getKey() + " failed to start: " + e.getMessage());
+					firstException = firstException == null ? e : firstException;
+				} catch (final TimeoutException e) {
+					logger.warning("Server " + watch.getKey() + " was not active in the required time");
+					firstException = firstException == null ? e : firstException;
+				}
+			}
+
+			for (final String id : activeMembers.keySet()) {
+				final ServerInfo member = members.get(id);
+				attachments.put(id, PROVISIONING_EXECUTOR.submit(new Callable<String>() {
+					public String call()
+							throws Exception {
+						final String floatingIp = acquireFloatingIP();
+						try {
+							addFloatingIP(member, floatingIp, authInfo, endTime);
+						} catch (final RuntimeException e) {
+							floatingIpPool.release(floatingIp, floatingIpSource);
+							throw e;
+						}
+						attachedIps.put(member.getId(), floatingIp);
+						return floatingIp;
+					}
+				}));
+			}
+
+			for (final Map.Entry<String, Future<String>> attachment : attachments.entrySet()) {
+				final String id = attachment.getKey();
+				try {
+					final String floatingIp =
+							attachment.getValue().get(Math.max(0, endTime - System.currentTimeMillis()),
+									TimeUnit.MILLISECONDS);
+					probes.put(id, startReadinessProbe(floatingIp, serverTemplate, endTime));
+				} catch (final ExecutionException e) {
+					final Exception failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+					logger.log(Level.WARNING, "Failed to attach a floating IP to server " + id + ": "
+							+ failure.getMessage(), failure);
+					firstException = firstException == null ? failure : firstException;
+				} catch (final TimeoutException e) {
+					logger.warning("Could not attach a floating IP to server " + id + " in the required time");
+					firstException = firstException == null ? e : firstException;
+				}
+			}
+
+			for (final Map.Entry<String, AsyncResult<Void>> probe : probes.entrySet()) {
+				final String id = probe.getKey();
+				final String floatingIp = attachedIps.get(id);
+				try {
+					probe.getValue().await(endTime);
+					final ServerInfo member = new ServerInfo(id, members.get(id).getUrl(), floatingIp);
+					final MachineDetails md = new MachineDetails();
+					fillMachineDetails(md, id, serverTemplate);
+					md.setPrivateAddress(activeMembers.get(id).getPrivateIp());
+					md.setPublicAddress(floatingIp);
+					indexServer(member, md.getPrivateAddress());
+					machines.add(md);
+				} catch (final ExecutionException e) {
+					final Exception failure = e.getCause() instanceof TimeoutException ? (TimeoutException) e
+							.getCause() : new OpenstackException("Readiness probe of " + floatingIp + " failed: "
+							+ e.getCause().getMessage(), e.getCause());
+					logger.log(Level.WARNING, "Server " + id + " did not become ready: " + failure.getMessage(),
+							failure);
+					firstException = firstException == null ? failure : firstException;
+				} catch (final TimeoutException e) {
+					logger.warning("Server " + id + " was not ready in the required time");
+					firstException = firstException == null ? e : firstException;
+				}
+			}
+		} catch (final OpenstackException e) {
+			firstException = e;
+		} finally {
+			for (final AsyncResult<EssexNode> watch : watches.values()) {
+				watch.cancel(false);
+			}
+			for (final AsyncResult<Void> probe : probes.values()) {
+				probe.cancel(false);
+			}
+			finishAttachments(attachments.values());
+			// whatever ended the wait, the members that did not make it must not leak, nor their IPs
+			for (final Map.Entry<String, String> attached : attachedIps.entrySet()) {
+				final ServerInfo member = members.get(attached.getKey());
+				members.put(member.getId(), new ServerInfo(member.getId(), member.getUrl(), attached.getValue()));
+			}
+			shutDownFailedMembers(members, machines, authInfo);
+		}
+
+		if (machines.isEmpty()) {
+			if (firstException instanceof TimeoutException) {
+				throw (TimeoutException) firstException;
 			}
+			throw new CloudProvisioningException("Failed to start servers " + serverName
+					+ (firstException == null ? "" : ": " + firstException.getMessage()), firstException);
+		}
+		if (machines.size() < count) {
+			logger.warning("Started " + machines.size() + " of " + count + " requested machines");
+		}
+		return machines.toArray(new MachineDetails[machines.size()]);
+	}
+
+	/**
+	 * Waits for floating IP attachments that already started, so the IPs they attach are known before
+	 * their servers are shut down. Attachments that did not start yet are cancelled.
+	 */
+	private void finishAttachments(final Collection<Future<String>> attachments) {
+		for (final Future<String> attachment : attachments) {
+			if (attachment.cancel(false)) {
+				continue;
+			}
+			try {
+				attachment.get();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (final Exception e) {
+				// already reported, or the IP was given back by the attachment itself
+			}
+		}
+	}
+
+	private void shutDownFailedMembers(final Map<String, ServerInfo> members, final List<MachineDetails> machines,
+			final AuthInfo authInfo) {
+		final Map<String, ServerInfo> failedMembers = new LinkedHashMap<String, ServerInfo>(members);
+		for (final MachineDetails md : machines) {
+			failedMembers.remove(md.getMachineId());
+		}
+		if (failedMembers.isEmpty()) {
+			return;
+		}
+		logger.warning("Shutting down servers that failed to start: " + failedMembers.keySet());
+		try {
+			terminateServers(new ArrayList<ServerInfo>(failedMembers.values()), authInfo,
+					calcEndTimeInMillis(DEFAULT_SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+		} catch (final Exception e) {
+			logger.log(Level.SEVERE, "Failed to shut down servers " + failedMembers.keySet()
+					+ ". They may be leaking. Error was: " + e.getMessage(), e);
 		}
-		return md;
 	}
 
 	private long calcEndTimeInMillis(final long duration, final TimeUnit unit) {
@@ -231,7 +616,7 @@ public class OpenstackEssexDriver extends CloudDriverSupport implements Provisio
 			throws TimeoutException, CloudProvisioningException {
 		AuthInfo authInfo;
 		try {
-			authInfo = createAuthenticationToken();
+			authInfo = getAuthInfo();
 		} catch (OpenstackException e) {
 			throw new CloudProvisioningException(e);	
 		}
@@ -239,46 +624,26 @@ public class OpenstackEssexDriver extends CloudDriverSupport implements Provisio
 
 		final int numOfManagementMachines = cloud.getProvider().getNumberOfManagementMachines();
 
-		// thread pool - one per machine
-		final ExecutorService executor =
-				Executors.newFixedThreadPool(cloud.getProvider().getNumberOfManagementMachines());
-
-		try {
-			return doStartManagement(endTime, authInfo, numOfManagementMachines, executor);
-		} finally {
-			executor.shutdown();
-		}
+		return doStartManagement(endTime, authInfo, numOfManagementMachines);
 	}
 
 	private MachineDetails[] doStartManagement(final long endTime, final AuthInfo authInfo,
-			final int numOfManagementMachines, final ExecutorService executor)
+			final int numOfManagementMachines)
 			throws CloudProvisioningException {
 
-		// launch machine on a thread
-		final List<Future<MachineDetails>> list = new ArrayList<Future<MachineDetails>>(numOfManagementMachines);
+		// start the machines together on the shared provisioning executor
+		final List<AsyncResult<MachineDetails>> boots =
+				new ArrayList<AsyncResult<MachineDetails>>(numOfManagementMachines);
 		for (int i = 0; i < numOfManagementMachines; ++i) {
-			final Future<MachineDetails> task = executor.submit(new Callable<MachineDetails>() {
-
-			
-				public MachineDetails call()
-						throws Exception {
-
-					final MachineDetails md = newServer(authInfo, endTime, template);
-					return md;
-
-				}
-
-			});
-			list.add(task);
-
+			boots.add(new ServerBoot(endTime, template).start());
 		}
 
 		// get the machines
 		Exception firstException = null;
 		final List<MachineDetails> machines = new ArrayList<MachineDetails>(numOfManagementMachines);
-		for (final Future<MachineDetails> future : list) {
+		for (final AsyncResult<MachineDetails> boot : boots) {
 			try {
-				machines.add(future.get());
+				machines.add(awaitMachine(boot, endTime));
 			} catch (final Exception e) {
 				if (firstException == null) {
 					firstException = e;
@@ -313,46 +678,109 @@ public class OpenstackEssexDriver extends CloudDriverSupport implements Provisio
 			throws InterruptedException, TimeoutException, CloudProvisioningException {
 		final long endTime = calcEndTimeInMillis(duration, unit);
 
+		final AsyncResult<Boolean> stop = stopMachineAsync(ip, duration, unit);
+		try {
+			return stop.await(endTime + ASYNC_RESULT_GRACE_MILLIS);
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof TimeoutException) {
+				throw (TimeoutException) e.getCause();
+			}
+			if (e.getCause() instanceof CloudProvisioningException) {
+				throw (CloudProvisioningException) e.getCause();
+			}
+			throw new CloudProvisioningException(e.getCause());
+		} catch (final TimeoutException e) {
+			stop.cancel(false);
+			throw e;
+		} catch (final InterruptedException e) {
+			stop.cancel(false);
+			throw e;
+		}
+	}
+
+	/**
+	 * Stops a machine without blocking the caller. The delete request runs on the shared provisioning
+	 * executor and the wait for the server to go away on the status watcher.
+	 *
+	 * @param ip the private or floating IP of the machine.
+	 * @param duration the time to wait for the machine to shut down.
+	 * @param unit the unit of the duration.
+	 * @return a result completed with true once the machine is gone, or false if it was already being
+	 *         stopped. It fails with a CloudProvisioningException, or a TimeoutException.
+	 */
+	public AsyncResult<Boolean> stopMachineAsync(final String ip, final long duration, final TimeUnit unit) {
+		final AsyncResult<Boolean> result = new AsyncResult<Boolean>();
 		if (isStopRequestRecent(ip)) {
-			return false;
+			result.complete(Boolean.FALSE);
+			return result;
 		}
 
-		
+		final long endTime = calcEndTimeInMillis(duration, unit);
 		try {
-			final AuthInfo authInfo = createAuthenticationToken();
-			terminateServerByIp(ip, authInfo, endTime);
-			return true;
-		} catch (final Exception e) {
-			throw new CloudProvisioningException(e);
+			PROVISIONING_EXECUTOR.execute(new Runnable() {
+				public void run() {
+					if (result.isDone()) {
+						return;
+					}
+					try {
+						final AuthInfo authInfo = getAuthInfo();
+						final ServerInfo serverInfo = deleteServerByIp(ip, authInfo);
+						final AsyncResult<EssexNode> deletion = statusWatcher.watch(serverInfo.getId(),
+								MACHINE_STATUS_DELETED, pollingSchedule.start(), endTime);
+						result.addListener(new Runnable() {
+							public void run() {
+								deletion.cancel(false);
+							}
+						});
+						deletion.addListener(new Runnable() {
+							public void run() {
+								try {
+									deletion.get();
+									result.complete(Boolean.TRUE);
+								} catch (final ExecutionException e) {
+									result.fail(e.getCause() instanceof TimeoutException ? e.getCause()
+											: new CloudProvisioningException(e.getCause()));
+								} catch (final Exception e) {
+									result.fail(e);
+								}
+							}
+						});
+					} catch (final Exception e) {
+						result.fail(new CloudProvisioningException(e));
+					}
+				}
+			});
+		} catch (final RejectedExecutionException e) {
+			result.fail(new CloudProvisioningException(e));
 		}
+		return result;
 	}
 
 	
 	public void stopManagementMachines()
 			throws TimeoutException, CloudProvisioningException {
+		drainWarmPool();
 		 AuthInfo authInfo =null;
 		final long endTime = calcEndTimeInMillis(DEFAULT_SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
-		List<Node> nodes;
+		final List<ServerInfo> serverInfoList;
 		try {
-			authInfo = createAuthenticationToken();
-			nodes = listServers(authInfo);
-		} catch (final OpenstackException e) {
-			throw new CloudProvisioningException(e);
-		}
-
-		final List<ServerInfo> serverInfoList = new LinkedList<ServerInfo>();
-		for (final Node node : nodes) {
-			logger.info("Machine name "+node.getName());
-			logger.info("Machine id "+node.getId());
-			if (node.getName().startsWith(this.serverNamePrefix)) {
-				try {
-					serverInfoList.add(new ServerInfo(node.getId(),((EssexNode)node).getServerURL(),node.getPublicIp()));
-
-				} catch (final Exception e) {
-					throw new CloudProvisioningException(e);
+			authInfo = getAuthInfo();
+			if (inventory.isSynced()) {
+				// a delta sync is cheaper than even a filtered listing
+				serverInfoList = new LinkedList<ServerInfo>();
+				for (final Node node : listServers(authInfo)) {
+					if (node.getName().startsWith(this.serverNamePrefix)) {
+						serverInfoList.add(new ServerInfo(node.getId(), ((EssexNode) node).getServerURL(),
+								node.getPublicIp()));
+					}
 				}
+			} else {
+				serverInfoList = listServersByNamePrefix(authInfo, this.serverNamePrefix);
 			}
+		} catch (final OpenstackException e) {
+			throw new CloudProvisioningException(e);
 		}
+		logger.info("Shutting down " + serverInfoList.size() + " machines with name prefix " + this.serverNamePrefix);
 
 		try {
 			terminateServers(serverInfoList, authInfo, endTime);
@@ -361,67 +789,106 @@ public class OpenstackEssexDriver extends CloudDriverSupport implements Provisio
 		} catch (final Exception e) {
 			throw new CloudProvisioningException("Failed to shut down managememnt machines", e);
 		}
+
+		// the whole cloud is going away, do not leave the ips the pool allocated
+		floatingIpPool.drain(floatingIpSource);
 	}
 
-	private Node getNode(final ServerInfo serverInfo, final AuthInfo authInfo)
+	/**
+	 * Lists all servers of the tenant with their details. Only the servers changed since the previous
+	 * listing are downloaded, see {@link ServerInventory}.
+	 */
+	List<Node> listServers(final AuthInfo authInfo)
 			throws OpenstackException {
-		logger.info("Server URL" +serverInfo.getUrl());
-		service = client.resource(serverInfo.getUrl());
-		final String response =
-				service.header("X-Auth-Token", authInfo.getToken())
-						.accept(MediaType.APPLICATION_XML).get(String.class);
-		final EssexNode node = new EssexNode();
+		final List<Node> nodes;
 		try {
-			final DocumentBuilder documentBuilder = createDocumentBuilder();
-			final Document xmlDoc = documentBuilder.parse(new InputSource(new StringReader(response)));
-
-			node.setId(xpath.evaluate("/server/@id", xmlDoc));
-			node.setStatus(xpath.evaluate("/server/@status", xmlDoc));
-			node.setName(xpath.evaluate("/server/@name", xmlDoc));
-
-			// We expect to get 2 IP addresses, public and private. Currently we get them both in an xml
-			// under a private node attribute. this is expected to change.
-			final NodeList addresses =
-					(NodeList) xpath.evaluate("/server/addresses/network/ip/@addr", xmlDoc, XPathConstants.NODESET);
-			if (node.getStatus().equalsIgnoreCase(MACHINE_STATUS_ACTIVE)) {
-				node.setPrivateIp(addresses.item(0).getTextContent());
-				if (addresses.getLength() != 2) {
-					logger.warning("Public IP not yet set");
-					
-				}else{
-					node.setPublicIp(addresses.item(1).getTextContent());
-				}
+			nodes = inventory.sync();
+		} catch (final OpenstackException e) {
+			throw e;
+		} catch (final RuntimeException e) {
+			throw e;
+		} catch (final Exception e) {
+			throw new OpenstackException("Failed to list servers: " + e.getMessage(), e);
+		}
+		refreshIpIndex(nodes);
+		return nodes;
+	}
+
+	/**
+	 * Lists the servers with exactly the given name, such as the members of a multi-create request.
+	 */
+	private List<Node> listServersByName(final AuthInfo authInfo, final String name)
+			throws OpenstackException {
+		// Nova matches the name filter as a regular expression
+		final WebResource service = client.resource(authInfo.getComputeServiceEndpointURL());
+		return getServers(service.path("/servers/detail").queryParam("name", "^" + escapeRegex(name) + "$"),
+				authInfo);
+	}
 
-				
-				
+	/**
+	 * Lists the servers whose name starts with the given prefix. The name is filtered by Nova and the
+	 * listing is paged, so the other servers of the tenant are never downloaded.
+	 */
+	private List<ServerInfo> listServersByNamePrefix(final AuthInfo authInfo, final String prefix)
+			throws OpenstackException {
+		final WebResource servers = client.resource(authInfo.getComputeServiceEndpointURL()).path("/servers/detail")
+				.queryParam("name", "^" + escapeRegex(prefix));
+		final List<ServerInfo> matching = new LinkedList<ServerInfo>();
+		for (final Node node : getAllServers(servers, authInfo)) {
+			// older Nova releases ignore the name filter
+			if (node.getName().startsWith(prefix)) {
+				matching.add(new ServerInfo(node.getId(), ((EssexNode) node).getServerURL(), node.getPublicIp()));
 			}
-			node.setServerURL(serverInfo.getUrl());
-			logger.info("Node Info "+node);
-		} catch (final XPathExpressionException e) {
-			throw new OpenstackException("Failed to parse XML Response from server. Response was: " + response
-					+ ", Error was: " + e.getMessage(), e);
-		} catch (final SAXException e) {
-			throw new OpenstackException("Failed to parse XML Response from server. Response was: " + response
-					+ ", Error was: " + e.getMessage(), e);
-		} catch (final IOException e) {
-			throw new OpenstackException("Failed to send request to server. Response was: " + response
-					+ ", Error was: " + e.getMessage(), e);
 		}
+		return matching;
+	}
 
-		return node;
-
+	/**
+	 * Lists the servers of a /servers/detail query page by page, so the listing is complete however many
+	 * servers the tenant has.
+	 */
+	private List<Node> getAllServers(final WebResource servers, final AuthInfo authInfo)
+			throws OpenstackException {
+		final WebResource paged = servers.queryParam("limit", Integer.toString(SERVER_PAGE_SIZE));
+		final List<Node> all = new ArrayList<Node>();
+		String marker = null;
+		while (true) {
+			final List<Node> page = getServers(marker == null ? paged : paged.queryParam("marker", marker), authInfo);
+			all.addAll(page);
+			if (page.size() < SERVER_PAGE_SIZE) {
+				return all;
+			}
+			marker = page.get(page.size() - 1).getId();
+		}
 	}
 
-	List<Node> listServers(final AuthInfo authInfo)
+	private List<Node> getServers(final WebResource resource, final AuthInfo authInfo)
 			throws OpenstackException {
-		final List<ServerInfo> serverInfoList = listServerIds( authInfo);
-		final List<Node> nodes = new ArrayList<Node>(serverInfoList.size());
+		try {
+			return retryPolicy.execute("List servers", true, 0,
+					new RetryPolicy.Attempt<List<Node>, OpenstackException>() {
+						public List<Node> run()
+								throws OpenstackException {
+							return new ArrayList<Node>(EssexResponseParser.parseServers(
+									resource.header("X-Auth-Token", authInfo.getToken())
+											.accept(MediaType.APPLICATION_XML).get(InputStream.class)));
+						}
+					});
+		} catch (final UniformInterfaceException e) {
+			final String responseEntity = e.getResponse().getEntity(String.class).toString();
+			throw new OpenstackException(e + " Response entity: " + responseEntity, e);
+		}
+	}
 
-		for (final ServerInfo serverInfo: serverInfoList) {
-			nodes.add(getNode(serverInfo,  authInfo));
+	private static String escapeRegex(final String value) {
+		final StringBuilder escaped = new StringBuilder(value.length());
+		for (final char c : value.toCharArray()) {
+			if ("\\^$.|?*+()[]{}".indexOf(c) >= 0) {
+				escaped.append('\\');
+			}
+			escaped.append(c);
 		}
-		
-		return nodes;
+		return escaped.toString();
 	}
 
 	// public void listFlavors(final String token) throws Exception {
@@ -436,69 +903,88 @@ public class OpenstackEssexDriver extends CloudDriverSupport implements Provisio
 	//
 	// }
 
-	private List<ServerInfo> listServerIds(final AuthInfo authInfo)
-			throws OpenstackException {
-
-		String response = null;
-		try {
-			service = client.resource(authInfo.getComputeServiceEndpointURL());
-			response =
-					service.path("/servers").header("X-Auth-Token", authInfo.getToken())
-							.accept(MediaType.APPLICATION_XML).get(String.class);
-			final DocumentBuilder documentBuilder = createDocumentBuilder();
-			final Document xmlDoc = documentBuilder.parse(new InputSource(new StringReader(response)));
-
-			
-		   
-		
-			
-			final NodeList idNodes = (NodeList) xpath.evaluate("/servers/server/@id", xmlDoc, XPathConstants.NODESET);
-			final NodeList urlNodes = (NodeList)xpath.evaluate("/servers/server/link[@rel='self']/@href",xmlDoc,XPathConstants.NODESET);
-			final int howmany = idNodes.getLength();
-			final List<ServerInfo> serverInfoList = new ArrayList<ServerInfo>(howmany);
-			for (int i = 0; i < howmany; i++) {
-				serverInfoList.add(new ServerInfo(idNodes.item(i).getTextContent(),urlNodes.item(i).getTextContent(),null));
-
+	/**
+	 * Deletes the server of a private or floating IP. Only lists the servers if the IP is not indexed, or
+	 * if the indexed server no longer exists because it was deleted outside this driver.
+	 *
+	 * @return the deleted server.
+	 */
+	private ServerInfo deleteServerByIp(final String serverIp, final AuthInfo authInfo)
+			throws Exception {
+		final ServerInfo indexed = serversByIp.get(serverIp);
+		if (indexed != null) {
+			try {
+				deleteServer(indexed, authInfo);
+				return indexed;
+			} catch (final Exception e) {
+				if (!isNotFound(e)) {
+					throw e;
+				}
+				logger.fine("Indexed server " + indexed.getId() + " of IP " + serverIp + " no longer exists");
+				unindexServer(indexed);
 			}
-			return serverInfoList;
-
-		} catch (final UniformInterfaceException e) {
-			final String responseEntity = e.getResponse().getEntity(String.class).toString();
-			throw new OpenstackException(e + " Response entity: " + responseEntity, e);
-
-		} catch (final SAXException e) {
-			throw new OpenstackException("Failed to parse XML Response from server. Response was: " + response
-					+ ", Error was: " + e.getMessage(), e);
-		} catch (final XPathException e) {
-			throw new OpenstackException("Failed to parse XML Response from server. Response was: " + response
-					+ ", Error was: " + e.getMessage(), e);
-		} catch (final IOException e) {
-			throw new OpenstackException("Failed to send request to server. Response was: " + response
-					+ ", Error was: " + e.getMessage(), e);
+		} else {
+			logger.fine("IP " + serverIp + " is not indexed");
+		}
+		listServers(authInfo);
+		final ServerInfo listed = serversByIp.get(serverIp);
+		if (listed == null) {
+			throw new IllegalArgumentException("Could not find a server with IP: " + serverIp);
+		}
+		deleteServer(listed, authInfo);
+		return listed;
+	}
 
+	private static boolean isNotFound(final Exception e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof UniformInterfaceException
+					&& ((UniformInterfaceException) cause).getResponse().getStatus() == HTTP_NOT_FOUND) {
+				return true;
+			}
 		}
+		return false;
 	}
 
-	private void terminateServerByIp(final String serverIp, final AuthInfo authInfo, final long endTime)
-			throws Exception {
-		final Node node = getNodeByIp(serverIp, authInfo);
-		if (node == null) {
-			throw new IllegalArgumentException("Could not find a server with IP: " + serverIp);
+	private void indexServer(final ServerInfo serverInfo, final String privateIp) {
+		if (!StringUtils.isEmpty(privateIp)) {
+			serversByIp.put(privateIp, serverInfo);
+		}
+		if (!StringUtils.isEmpty(serverInfo.getIp())) {
+			serversByIp.put(serverInfo.getIp(), serverInfo);
 		}
-		terminateServer(new ServerInfo(node.getId(),((EssexNode)node).getServerURL(),node.getPublicIp()), authInfo, endTime);
 	}
 
-	private Node getNodeByIp(final String serverIp,  final AuthInfo authInfo)
-			throws OpenstackException {
-		final List<Node> nodes = listServers(authInfo);
+	/**
+	 * Brings the IP index in line with a full server listing: adds or updates the listed servers
+	 * and drops entries of servers that no longer exist.
+	 */
+	private void refreshIpIndex(final List<Node> nodes) {
+		final Set<String> listedIds = new HashSet<String>(nodes.size());
 		for (final Node node : nodes) {
-			if (node.getPrivateIp() != null && node.getPrivateIp().equalsIgnoreCase(serverIp)
-					|| node.getPublicIp() != null && node.getPublicIp().equalsIgnoreCase(serverIp)) {
-				return node;
+			listedIds.add(node.getId());
+			final ServerInfo current = node.getPublicIp() == null ? null : serversByIp.get(node.getPublicIp());
+			if (current == null || !current.getId().equals(node.getId())) {
+				indexServer(new ServerInfo(node.getId(), ((EssexNode) node).getServerURL(), node.getPublicIp()),
+						node.getPrivateIp());
+			} else if (!StringUtils.isEmpty(node.getPrivateIp())) {
+				serversByIp.put(node.getPrivateIp(), current);
 			}
 		}
+		final Iterator<ServerInfo> iterator = serversByIp.values().iterator();
+		while (iterator.hasNext()) {
+			if (!listedIds.contains(iterator.next().getId())) {
+				iterator.remove();
+			}
+		}
+	}
 
-		return null;
+	private void unindexServer(final ServerInfo serverInfo) {
+		final Iterator<ServerInfo> iterator = serversByIp.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().getId().equals(serverInfo.getId())) {
+				iterator.remove();
+			}
+		}
 	}
 
 	private void terminateServer(final ServerInfo serverInfo, final AuthInfo authInfo, final long endTime)
@@ -509,159 +995,454 @@ public class OpenstackEssexDriver extends CloudDriverSupport implements Provisio
 	private void terminateServers(final List<ServerInfo> serverInfoList, final AuthInfo authInfo, final long endTime)
 			throws Exception {
 
-		// detach public ip and delete the servers
+		// detach public ips and delete the servers, a bounded number at a time
+		final int numOfWorkers = Math.max(1, Math.min(serverInfoList.size(), MAX_TERMINATION_THREADS));
+		final ExecutorService executor = Executors.newFixedThreadPool(numOfWorkers);
+		try {
+			final List<Future<?>> deletions = new ArrayList<Future<?>>(serverInfoList.size());
+			for (final ServerInfo serverInfo : serverInfoList) {
+				deletions.add(executor.submit(new Callable<Void>() {
+
+					public Void call()
+							throws Exception {
+						deleteServer(serverInfo, authInfo);
+						return null;
+					}
+
+				}));
+			}
+
+			Exception firstException = null;
+			for (final Future<?> deletion : deletions) {
+				try {
+					deletion.get();
+				} catch (final ExecutionException e) {
+					if (firstException == null) {
+						firstException = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+					}
+				}
+			}
+			if (firstException != null) {
+				throw firstException;
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		// wait for all servers to die, the status watcher checks them together with one listing per tick
+		final Map<String, AsyncResult<EssexNode>> deletions = new LinkedHashMap<String, AsyncResult<EssexNode>>();
 		for (final ServerInfo serverInfo : serverInfoList) {
-			try {
-				if(!StringUtils.isEmpty(serverInfo.getIp())){
-					detachFloatingIP(serverInfo, serverInfo.getIp(), authInfo);
-					deleteFloatingIP(serverInfo.getIp(), authInfo);
+			deletions.put(serverInfo.getId(),
+					statusWatcher.watch(serverInfo.getId(), MACHINE_STATUS_DELETED, pollingSchedule.start(), endTime));
+		}
+
+		final Set<String> pendingIds = new HashSet<String>();
+		try {
+			for (final Map.Entry<String, AsyncResult<EssexNode>> deletion : deletions.entrySet()) {
+				try {
+					awaitStatus(deletion.getValue(), endTime);
+				} catch (final TimeoutException e) {
+					pendingIds.add(deletion.getKey());
 				}
-				service = client.resource(serverInfo.getUrl());
-				service.header("X-Auth-Token", authInfo.getToken())
-						.accept(MediaType.APPLICATION_XML).delete();
-			} catch (final UniformInterfaceException e) {
-				final String responseEntity = e.getResponse().getEntity(String.class).toString();
-				throw new IllegalArgumentException(e + " Response entity: " + responseEntity);
 			}
+		} finally {
+			for (final AsyncResult<EssexNode> deletion : deletions.values()) {
+				deletion.cancel(false);
+			}
+		}
+		if (!pendingIds.isEmpty()) {
+			throw new TimeoutException("Servers " + pendingIds + " did not shut down in the required time");
+		}
 
+	}
+
+	private void deleteServer(final ServerInfo serverInfo, final AuthInfo authInfo)
+			throws Exception {
+		try {
+			if(!StringUtils.isEmpty(serverInfo.getIp())){
+				detachFloatingIP(serverInfo, serverInfo.getIp(), authInfo);
+				// keep the ip for the next server if the pool has room
+				floatingIpPool.release(serverInfo.getIp(), floatingIpSource);
+			}
+			retryPolicy.execute("Delete server " + serverInfo.getId(), true, 0,
+					new RetryPolicy.Attempt<Void, RuntimeException>() {
+						public Void run() {
+							client.resource(serverInfo.getUrl()).header("X-Auth-Token", authInfo.getToken())
+									.accept(MediaType.APPLICATION_XML).delete();
+							return null;
+						}
+					});
+			unindexServer(serverInfo);
+		} catch (final UniformInterfaceException e) {
+			final String responseEntity = e.getResponse().getEntity(String.class).toString();
+			throw new IllegalArgumentException(e + " Response entity: " + responseEntity, e);
 		}
+	}
 
-		int successCounter = 0;
+	/**
+	 * Continues an asynchronous start with the value of a completed stage.
+	 */
+	private interface Continuation<T> {
 
-		// wait for all servers to die
-		for (final ServerInfo serverInfo : serverInfoList) {
-			while (System.currentTimeMillis() < endTime) {
-				try {
-					this.getNode(serverInfo, authInfo);
+		void run(T value)
+				throws Exception;
+	}
+
+	/**
+	 * The asynchronous start of one server. Each step runs as a stage on the shared provisioning executor;
+	 * the waits between them, for ACTIVE on the status watcher and for readiness on the probe selector,
+	 * hold no thread. The floating IP does not depend on the server, so it is acquired while the server
+	 * is created and boots, and attached as soon as the server is ACTIVE. A boot that fails or is
+	 * cancelled shuts its server down and gives back its floating IP.
+	 */
+	private class ServerBoot {
+
+		private final AsyncResult<MachineDetails> result = new AsyncResult<MachineDetails>();
+		private final AsyncResult<String> floatingIp = new AsyncResult<String>();
+		private final long endTime;
+		private final CloudTemplate serverTemplate;
+		private volatile AuthInfo authInfo;
+		private volatile Future<?> pendingWait;
+		private volatile long waitStart;
+		// guarded by this
+		private ServerInfo serverInfo;
+		private boolean cleanedUp;
+		// the floating IP is either claimed by the attach stage or released, never both
+		private boolean floatingIpClaimed;
+		private boolean floatingIpReleased;
+
+		ServerBoot(final long endTime, final CloudTemplate serverTemplate) {
+			this.endTime = endTime;
+			this.serverTemplate = serverTemplate;
+		}
 
-				} catch (final UniformInterfaceException e) {
-					if (e.getResponse().getStatus() == HTTP_NOT_FOUND) {
-						++successCounter;
-						break;
+		AsyncResult<MachineDetails> start() {
+			result.addListener(new Runnable() {
+				public void run() {
+					if (result.isCancelled()) {
+						final Future<?> wait = pendingWait;
+						if (wait != null) {
+							wait.cancel(false);
+						}
+						cleanUp();
 					}
-					throw e;
+					// a no-op if the boot got as far as attaching the IP
+					floatingIp.addListener(new Runnable() {
+						public void run() {
+							releaseUnclaimedFloatingIp();
+						}
+					});
 				}
-				Thread.sleep(SERVER_POLLING_INTERVAL_MILLIS);
+			});
+			try {
+				PROVISIONING_EXECUTOR.execute(new Runnable() {
+					public void run() {
+						acquireFloatingIp();
+					}
+				});
+			} catch (final RejectedExecutionException e) {
+				floatingIp.fail(e);
 			}
+			runStage(new Callable<Void>() {
+				public Void call()
+						throws Exception {
+					create();
+					return null;
+				}
+			});
+			return result;
+		}
 
+		private void acquireFloatingIp() {
+			if (result.isDone()) {
+				floatingIp.cancel(false);
+				return;
+			}
+			try {
+				final String ip = acquireFloatingIP();
+				if (!floatingIp.complete(ip)) {
+					// the boot was given up while the IP was being acquired
+					releaseFloatingIp(ip);
+				}
+			} catch (final Exception e) {
+				floatingIp.fail(e);
+			}
 		}
 
-		if (successCounter == serverInfoList.size()) {
-			return;
+		private void releaseUnclaimedFloatingIp() {
+			final String ip;
+			try {
+				ip = floatingIp.get();
+			} catch (final Exception e) {
+				// never acquired
+				return;
+			}
+			synchronized (this) {
+				if (floatingIpClaimed || floatingIpReleased) {
+					return;
+				}
+				floatingIpReleased = true;
+			}
+			releaseFloatingIp(ip);
 		}
 
-		throw new TimeoutException("Nodes " + serverInfoList + " did not shut down in the required time");
+		private void releaseFloatingIp(final String ip) {
+			try {
+				floatingIpPool.release(ip, floatingIpSource);
+			} catch (final Exception e) {
+				logger.log(Level.WARNING, "Failed to release floating IP " + ip + ". It may be leaking.", e);
+			}
+		}
 
-	}
+		/**
+		 * @return false if the floating IP was already given back.
+		 */
+		private synchronized boolean claimFloatingIp() {
+			if (floatingIpReleased) {
+				return false;
+			}
+			floatingIpClaimed = true;
+			return true;
+		}
 
-	/**
-	 * Creates server. Block until complete. Returns id
-	 * 
-	 * @param name the server name
-	 * @param timeout the timeout in seconds
-	 * @param serverTemplate the cloud template to use for this server
-	 * @return the server id
-	 */
-	private MachineDetails newServer(final AuthInfo authInfo, final long endTime, final CloudTemplate serverTemplate)
-			throws Exception {
-		
-		final ServerInfo serverInfo = createServer(authInfo, serverTemplate);
+		private void create()
+				throws Exception {
+			authInfo = getAuthInfo();
+			final ServerInfo created = createServer(authInfo, serverTemplate, endTime);
+			if (!setServerInfo(created)) {
+				return;
+			}
+			if (result.isCancelled()) {
+				cleanUp();
+				return;
+			}
+			waitStart = System.currentTimeMillis();
+			// the first poll is timed from earlier boots of the same image
+			then(statusWatcher.watch(created.getId(), MACHINE_STATUS_ACTIVE,
+					pollingSchedule.startBoot(serverTemplate.getImageId()), endTime), new Continuation<EssexNode>() {
+				public void run(final EssexNode node) {
+					PollingSchedule.recordBootTime(serverTemplate.getImageId(),
+							System.currentTimeMillis() - waitStart);
+					// usually acquired long ago, while the server was booting
+					then(floatingIp, new Continuation<String>() {
+						public void run(final String ip)
+								throws Exception {
+							active(created, node, ip);
+						}
+					});
+				}
+			});
+		}
+
+		private void active(final ServerInfo created, final EssexNode node, final String floatingIp)
+				throws Exception {
+			if (!claimFloatingIp()) {
+				return;
+			}
+			try {
+				addFloatingIP(created, floatingIp, authInfo, endTime);
+			} catch (final RuntimeException e) {
+				floatingIpPool.release(floatingIp, floatingIpSource);
+				throw e;
+			}
+			final ServerInfo withIp = new ServerInfo(created.getId(), created.getUrl(), floatingIp);
+			if (!setServerInfo(withIp)) {
+				// cancelled while the IP was being attached, and the server is already going away
+				detachFloatingIP(withIp, floatingIp, authInfo);
+				floatingIpPool.release(floatingIp, floatingIpSource);
+				return;
+			}
 
-		try {
 			final MachineDetails md = new MachineDetails();
-			// wait until complete
-			waitForServerToReachStatus(md, endTime, serverInfo, authInfo, MACHINE_STATUS_ACTIVE);
+			fillMachineDetails(md, created.getId(), serverTemplate);
+			md.setPrivateAddress(node.getPrivateIp());
+			md.setPublicAddress(floatingIp);
+			then(startReadinessProbe(floatingIp, serverTemplate, endTime), new Continuation<Void>() {
+				public void run(final Void ignored) {
+					indexServer(withIp, md.getPrivateAddress());
+					result.complete(md);
+				}
+			});
+		}
 
-			// if here, we have a node with a private and public ip.
-			
+		/**
+		 * Runs the next stage once a wait completes.
+		 */
+		private <T> void then(final AsyncResult<T> wait, final Continuation<T> next) {
+			pendingWait = wait;
+			if (result.isCancelled()) {
+				wait.cancel(false);
+			}
+			wait.addListener(new Runnable() {
+				public void run() {
+					runStage(new Callable<Void>() {
+						public Void call()
+								throws Exception {
+							next.run(wait.get());
+							return null;
+						}
+					});
+				}
+			});
+		}
 
-			
-			md.setMachineId(serverInfo.getId());
-			md.setAgentRunning(false);
-			md.setCloudifyInstalled(false);
-			md.setInstallationDirectory(serverTemplate.getRemoteDirectory());
-			md.setRemoteUsername(serverTemplate.getUsername());
-			md.setRemotePassword(serverTemplate.getPassword());
+		private void runStage(final Callable<Void> stage) {
+			if (result.isDone()) {
+				return;
+			}
+			try {
+				PROVISIONING_EXECUTOR.execute(new Runnable() {
+					public void run() {
+						if (result.isDone()) {
+							return;
+						}
+						try {
+							stage.call();
+						} catch (final Exception e) {
+							failed(e);
+						}
+					}
+				});
+			} catch (final RejectedExecutionException e) {
+				failed(e);
+			}
+		}
 
-			return md;
-		} catch (final Exception e) {
-			logger.log(Level.WARNING, "server: " + serverInfo.getId() + " failed to start up correctly. "
-					+ "Shutting it down. Error was: " + e.getMessage(), e);
+		private void failed(final Exception e) {
+			final Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+			final Exception failure;
+			if (cause instanceof TimeoutException) {
+				failure = (TimeoutException) cause;
+			} else {
+				failure = toProvisioningException(cause instanceof Exception ? (Exception) cause : e);
+			}
+			if (result.fail(failure)) {
+				logger.log(Level.WARNING, "server: " + getServerId() + " failed to start up correctly. "
+						+ "Shutting it down. Error was: " + cause.getMessage(), cause);
+				cleanUp();
+			}
+		}
+
+		private synchronized String getServerId() {
+			return serverInfo == null ? null : serverInfo.getId();
+		}
+
+		/**
+		 * @return false if the server is already being shut down.
+		 */
+		private synchronized boolean setServerInfo(final ServerInfo info) {
+			if (cleanedUp) {
+				return false;
+			}
+			serverInfo = info;
+			return true;
+		}
+
+		private void cleanUp() {
+			final ServerInfo server;
+			synchronized (this) {
+				if (cleanedUp || serverInfo == null) {
+					return;
+				}
+				cleanedUp = true;
+				server = serverInfo;
+			}
 			try {
-				terminateServer(serverInfo, authInfo, endTime);
-			} catch (final Exception e2) {
-				logger.log(Level.WARNING,
-						"Error while shutting down failed machine: " + serverInfo.getId() + ". Error was: " + e.getMessage()
-								+ ".It may be leaking.", e);
+				PROVISIONING_EXECUTOR.execute(new Runnable() {
+					public void run() {
+						try {
+							deleteServer(server, authInfo);
+						} catch (final Exception e) {
+							logger.log(Level.WARNING, "Error while shutting down failed machine: " + server.getId()
+									+ ". Error was: " + e.getMessage() + ". It may be leaking.", e);
+						}
+					}
+				});
+			} catch (final RejectedExecutionException e) {
+				logger.log(Level.WARNING, "Could not shut down failed machine: " + server.getId()
+						+ ". It may be leaking.", e);
 			}
-			throw e;
 		}
+	}
 
+	private void fillMachineDetails(final MachineDetails md, final String machineId,
+			final CloudTemplate serverTemplate) {
+		md.setMachineId(machineId);
+		md.setAgentRunning(false);
+		md.setCloudifyInstalled(false);
+		md.setInstallationDirectory(serverTemplate.getRemoteDirectory());
+		md.setRemoteUsername(serverTemplate.getUsername());
+		md.setRemotePassword(serverTemplate.getPassword());
 	}
 
-	private ServerInfo createServer(final AuthInfo authInfo, final CloudTemplate serverTemplate)
-			throws OpenstackException {
-		String serverName = null;
+	private String newServerName(final CloudTemplate serverTemplate) {
+		final String suffix = System.currentTimeMillis() + "-" + SERVER_NAME_SEQUENCE.incrementAndGet();
 		String serviceNamePrefix =(String) serverTemplate.getCustom().get("machineNamePrefix");
 		 if(!StringUtils.isEmpty(serviceNamePrefix)){
-			 serverName = serviceNamePrefix + System.currentTimeMillis();
+			 return serviceNamePrefix + suffix;
 		 }else{
-			 serverName = this.serverNamePrefix + System.currentTimeMillis();
+			 return this.serverNamePrefix + suffix;
 		 }
-		
-		
+	}
+
+	private ServerInfo createServer(final AuthInfo authInfo, final CloudTemplate serverTemplate, final long endTime)
+			throws OpenstackException {
+		final String serverName = newServerName(serverTemplate);
+		final EssexNode bootedServer = postServers(authInfo, serverName, serverTemplate, 1, endTime);
+
+		// if we are here, the machine started!
+		final EssexNode serverDetail = retryPolicy.execute("Get server " + bootedServer.getId(), true, endTime,
+				new RetryPolicy.Attempt<EssexNode, OpenstackException>() {
+					public EssexNode run()
+							throws OpenstackException {
+						return EssexResponseParser.parseServer(client.resource(bootedServer.getServerURL())
+								.header("X-Auth-Token", authInfo.getToken())
+								.accept(MediaType.APPLICATION_XML).get(InputStream.class));
+					}
+				});
+
+		final String status = serverDetail.getStatus();
+		if (!status.startsWith("BUILD")) {
+			throw new IllegalStateException("Expected server status of BUILD(*), got: " + status);
+		}
+
+		return new ServerInfo(serverDetail.getId(), serverDetail.getServerURL(), null);
+	}
+
+	/**
+	 * Asks Nova to boot servers. With a count above 1 this is a single multi-create request: every
+	 * instance gets the same name and the response only describes the first one.
+	 * Not idempotent, so only retried if the request did not reach the cloud or it was unavailable.
+	 */
+	private EssexNode postServers(final AuthInfo authInfo, final String serverName,
+			final CloudTemplate serverTemplate, final int count, final long endTime)
+			throws OpenstackException {
 		final String securityGroup = getCustomTemplateValue(serverTemplate, OPENSTACK_SECURITYGROUP, null, false);
 		final String keyPairName = getCustomTemplateValue(serverTemplate, OPENSTACK_KEY_PAIR, null, false);
 		String userdata = new String(Base64.encode(serverName.getBytes()));
+		final String countFields = count > 1 ? ",\"min_count\":1,\"max_count\":" + count : "";
 		// Start the machine!
 		final String json =
 				"{\"server\":{ \"name\":\"" + serverName + "\",\"imageRef\":\"" + serverTemplate.getImageId() +"\",\"user_data\":\"" + userdata
 						+ "\",\"flavorRef\":\"" + serverTemplate.getHardwareId() + "\",\"key_name\":\"" + keyPairName
-						+ "\",\"security_groups\":[{\"name\":\"" + securityGroup + "\"}]}}";
+						+ "\",\"security_groups\":[{\"name\":\"" + securityGroup + "\"}]" + countFields + "}}";
 
-		String serverBootResponse = null;
 		try {
-			service = client.resource(authInfo.getComputeServiceEndpointURL());
-			serverBootResponse =
-					service.path("/servers").header("Content-Type", "application/json")
-							.header("X-Auth-Token", authInfo.getToken()).accept(MediaType.APPLICATION_XML).post(String.class, json);
+			final WebResource service = client.resource(authInfo.getComputeServiceEndpointURL());
+			return retryPolicy.execute("Create server " + serverName, false, endTime,
+					new RetryPolicy.Attempt<EssexNode, OpenstackException>() {
+						public EssexNode run()
+								throws OpenstackException {
+							return EssexResponseParser.parseServer(
+									service.path("/servers").header("Content-Type", "application/json")
+											.header("X-Auth-Token", authInfo.getToken())
+											.accept(MediaType.APPLICATION_XML).post(InputStream.class, json));
+						}
+					});
 		} catch (final UniformInterfaceException e) {
 			final String responseEntity = e.getResponse().getEntity(String.class).toString();
 			throw new OpenstackException(e + " Response entity: " + responseEntity, e);
 		}
-
-		try {
-			// if we are here, the machine started!
-			final DocumentBuilder documentBuilder = createDocumentBuilder();
-			Document doc = documentBuilder.parse(new InputSource(new StringReader(serverBootResponse)));
-			
-			String serverDetailURL =xpath.evaluate("//server/link[@rel='self']/@href", doc);
-			service = client.resource(serverDetailURL);
-			
-			String serverDetail = service.header("X-Auth-Token", authInfo.getToken())
-					.accept(MediaType.APPLICATION_XML).get(String.class);
-			
-			doc = documentBuilder.parse(new InputSource(new StringReader(serverDetail)));
-			final String status = xpath.evaluate("/server/@status", doc);
-			if (!status.startsWith("BUILD")) {
-				throw new IllegalStateException("Expected server status of BUILD(*), got: " + status);
-			}
-
-			final String serverId = xpath.evaluate("/server/@id", doc);
-		    final String serverInfoURL = xpath.evaluate("/server/link[@rel='self']/@href", doc);
-			
-			
-			return new ServerInfo(serverId,serverInfoURL,null);
-		} catch (final XPathExpressionException e) {
-			throw new OpenstackException("Failed to parse XML Response from server. Response was: "
-					+ serverBootResponse + ", Error was: " + e.getMessage(), e);
-		} catch (final SAXException e) {
-			throw new OpenstackException("Failed to parse XML Response from server. Response was: "
-					+ serverBootResponse + ", Error was: " + e.getMessage(), e);
-		} catch (final IOException e) {
-			throw new OpenstackException("Failed to send request to server. Response was: " + serverBootResponse
-					+ ", Error was: " + e.getMessage(), e);
-		}
 	}
 
 	private String getCustomTemplateValue(final CloudTemplate serverTemplate, final String key,
@@ -679,113 +1460,99 @@ public class OpenstackEssexDriver extends CloudDriverSupport implements Provisio
 
 	}
 
-	private void waitForServerToReachStatus(final MachineDetails md, final long endTime, final ServerInfo serverInfo,
-			final AuthInfo authInfo, final String status)
+	/**
+	 * Waits for a watch of the status watcher, stopping the watch if the wait is given up.
+	 */
+	private EssexNode awaitStatus(final AsyncResult<EssexNode> watch, final long endTime)
 			throws OpenstackException, TimeoutException, InterruptedException {
-
-		final String respone = null;
-		while (true) {
-
-			final Node node = this.getNode(serverInfo, authInfo);
-
-			final String currentStatus = node.getStatus().toLowerCase();
-
-			if (currentStatus.equalsIgnoreCase(status)) {
-
-				md.setPrivateAddress(node.getPrivateIp());
-				String floatingIp = allocateFloatingIP(authInfo);
-				addFloatingIP(serverInfo, floatingIp, authInfo);			
-				waitForServerToRespond(floatingIp);
-				md.setPublicAddress(floatingIp);
-				break;
-			} else {
-				if (currentStatus.contains("error")) {
-					throw new OpenstackException("Server provisioning failed. Node ID: " + node.getId() + ", status: "
-							+ node.getStatus());
-				}
-
+		try {
+			return watch.await(endTime);
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof OpenstackException) {
+				throw (OpenstackException) e.getCause();
 			}
-
-			if (System.currentTimeMillis() > endTime) {
-				throw new TimeoutException("timeout creating server. last status:" + respone);
+			if (e.getCause() instanceof TimeoutException) {
+				throw (TimeoutException) e.getCause();
 			}
-
-			Thread.sleep(SERVER_POLLING_INTERVAL_MILLIS);
-
+			throw new OpenstackException("Failed to watch server status: " + e.getCause().getMessage(), e.getCause());
+		} finally {
+			watch.cancel(false);
 		}
-
 	}
 
 	/**
 	 * The server takes a while to come in which case control
 	 * must return back to cloudify apis only when its ready to accept
-	 * requests
+	 * requests. The probe runs on the shared selector of {@link ReadinessProbeEngine}
+	 * and its port, path and type are set with the openstack.readiness.* template options.
 	 * @param floatingIp
-	 * @throws InterruptedException
+	 * @param serverTemplate
+	 * @param endTime
+	 * @return a result completed once the server responds.
 	 */
-	private void waitForServerToRespond(String floatingIp) throws InterruptedException {
-		boolean isActive=false;
-		while(!isActive){
-			try {
-				service = client.resource("http://"+floatingIp+":7777/");
-				ClientResponse response = service.get(ClientResponse.class);
-				 
-				 if(response.getClientResponseStatus().equals(Status.OK)){
-					 logger.info(floatingIp + " returned " + Status.OK + " so its ready.");
-					 isActive =true;
-					 break;
-				 }
-				}
-				catch(ClientHandlerException ce) {
-					if(ce.getCause() instanceof ConnectException){
-						 logger.info("Unable to connect to "+floatingIp+"  ...waiting");
-					}
-				}
-				Thread.sleep(SERVER_POLLING_INTERVAL_MILLIS);
-			}
-		
+	private AsyncResult<Void> startReadinessProbe(final String floatingIp, final CloudTemplate serverTemplate,
+			final long endTime) {
+		final ReadinessProbeEngine.ProbeType type;
+		try {
+			type = ReadinessProbeEngine.ProbeType.valueOf(
+					getCustomTemplateValue(serverTemplate, OPENSTACK_READINESS_TYPE, "http", true).toUpperCase());
+		} catch (final IllegalArgumentException e) {
+			throw new IllegalArgumentException("Template option '" + OPENSTACK_READINESS_TYPE
+					+ "' must be one of tcp, http or ssh", e);
+		}
+		final String defaultPort = type == ReadinessProbeEngine.ProbeType.SSH ? DEFAULT_SSH_PORT
+				: DEFAULT_READINESS_PORT;
+		final int port = Integer.parseInt(getCustomTemplateValue(serverTemplate, OPENSTACK_READINESS_PORT,
+				defaultPort, true));
+		final String path = getCustomTemplateValue(serverTemplate, OPENSTACK_READINESS_PATH, "/", true);
+		final long attemptTimeout = Long.parseLong(getCustomTemplateValue(serverTemplate,
+				OPENSTACK_READINESS_CONNECT_TIMEOUT, DEFAULT_READINESS_CONNECT_TIMEOUT_MILLIS, true));
+
+		return readinessProbe.probe(floatingIp, port, type, path, attemptTimeout, READINESS_RETRY_INTERVAL_MILLIS,
+				endTime);
 	}
 
-	@SuppressWarnings("rawtypes")
 	List<FloatingIP> listFloatingIPs(final AuthInfo authInfo)
-			throws SAXException, IOException {
+			throws OpenstackException {
 		
-		service = client.resource(authInfo.getComputeServiceEndpointURL());
-		final String response =
+		final WebResource service = client.resource(authInfo.getComputeServiceEndpointURL());
+		final List<FloatingIP> floatingIps = EssexResponseParser.parseFloatingIps(
 				service.path("/os-floating-ips").header("X-Auth-Token", authInfo.getToken())
-						.accept(MediaType.APPLICATION_JSON).get(String.class);
-
-		final ObjectMapper mapper = new ObjectMapper();
-		final Map map = mapper.readValue(new StringReader(response), Map.class);
-		@SuppressWarnings("unchecked")
-		final List<Map> list = (List<Map>) map.get("floating_ips");
-		final List<FloatingIP> floatingIps = new ArrayList<FloatingIP>(map.size());
-
-		for (final Map floatingIpMap : list) {
-			final FloatingIP ip = new FloatingIP();
+						.accept(MediaType.APPLICATION_JSON).get(InputStream.class));
+		refreshFloatingIpIndex(floatingIps);
+		return floatingIps;
 
-			final Object instanceId = floatingIpMap.get("instance_id");
+	}
 
-			ip.setInstanceId(instanceId == null ? null : instanceId.toString());
-			ip.setIp((String) floatingIpMap.get("ip"));
-			ip.setFixedIp((String) floatingIpMap.get("fixed_ip"));
-			ip.setId(floatingIpMap.get("id").toString());
-			floatingIps.add(ip);
+	private void refreshFloatingIpIndex(final List<FloatingIP> floatingIps) {
+		final Set<String> listed = new HashSet<String>(floatingIps.size());
+		for (final FloatingIP floatingIp : floatingIps) {
+			listed.add(floatingIp.getIp());
+			floatingIpsByAddress.put(floatingIp.getIp(), floatingIp);
 		}
-		return floatingIps;
-
+		floatingIpsByAddress.keySet().retainAll(listed);
+		floatingIpListings.incrementAndGet();
 	}
 
+	/**
+	 * Looks up a floating IP in the index, listing the floating IPs only if it is missing.
+	 * Concurrent misses share a single listing.
+	 */
 	private FloatingIP getFloatingIpByIp(final String ip, final AuthInfo authInfo)
-			throws SAXException, IOException {
-		final List<FloatingIP> allips = listFloatingIPs(authInfo);
-		for (final FloatingIP floatingIP : allips) {
-			if (ip.equals(floatingIP.getIp())) {
-				return floatingIP;
+			throws OpenstackException {
+		final long listingsBeforeMiss = floatingIpListings.get();
+		FloatingIP floatingIp = floatingIpsByAddress.get(ip);
+		if (floatingIp != null) {
+			return floatingIp;
+		}
+		synchronized (floatingIpListingMutex) {
+			floatingIp = floatingIpsByAddress.get(ip);
+			if (floatingIp == null && floatingIpListings.get() == listingsBeforeMiss) {
+				listFloatingIPs(authInfo);
+				floatingIp = floatingIpsByAddress.get(ip);
 			}
 		}
-
-		return null;
+		return floatingIp;
 	}
 
 	/*********************
@@ -793,48 +1560,73 @@ public class OpenstackEssexDriver extends CloudDriverSupport implements Provisio
 	 * 
 	 * @param ip .
 	 * @param token .
-	 * @throws SAXException .
-	 * @throws IOException .
+	 * @throws OpenstackException .
 	 */
 	public void deleteFloatingIP(final String ip, final AuthInfo authInfo)
-			throws SAXException, IOException {
+			throws OpenstackException {
 
-		service = client.resource(authInfo.getComputeServiceEndpointURL());
+		final WebResource service = client.resource(authInfo.getComputeServiceEndpointURL());
 		final FloatingIP floatingIp = getFloatingIpByIp(ip, authInfo);
 		if (floatingIp == null) {
 			logger.warning("Could not find floating IP " + ip + " in list. IP was not deleted.");
 		} else {
-			service.path("/os-floating-ips/" + floatingIp.getId()).header("X-Auth-Token", authInfo.getToken())
-					.accept(MediaType.APPLICATION_JSON).delete();
+			try {
+				service.path("/os-floating-ips/" + floatingIp.getId()).header("X-Auth-Token", authInfo.getToken())
+						.accept(MediaType.APPLICATION_JSON).delete();
+			} catch (final UniformInterfaceException e) {
+				if (e.getResponse().getStatus() != HTTP_NOT_FOUND) {
+					throw e;
+				}
+				logger.warning("Floating IP " + ip + " (id " + floatingIp.getId() + ") no longer exists.");
+			} finally {
+				floatingIpsByAddress.remove(ip, floatingIp);
+			}
 
 		}
 
 	}
 
+	/**
+	 * Takes a floating IP from the pool, allocating one if the pool is empty.
+	 */
+	private String acquireFloatingIP() throws OpenstackException {
+		try {
+			return floatingIpPool.acquire(floatingIpSource);
+		} catch (final RuntimeException e) {
+			throw e;
+		} catch (final Exception e) {
+			throw new OpenstackException("Failed to acquire floating IP: " + e.getMessage(), e);
+		}
+	}
+
 	/**************
 	 * Allocates a floating IP.
 	 * 
 	 * @param token .
 	 * @return .
 	 */
-	
 	public String allocateFloatingIP(final AuthInfo authInfo) {
 
 		try {
-			service = client.resource(authInfo.getComputeServiceEndpointURL());
-			final String resp =
-					service.path("/os-floating-ips").header("Content-type", "application/json")
-							.header("X-Auth-Token", authInfo.getToken()).accept(MediaType.APPLICATION_JSON).post(String.class, "");
-
-			final Matcher m = Pattern.compile("\"ip\": \"([^\"]*)\"").matcher(resp);
-			if (m.find()) {
-				return m.group(1);
-			} else {
-				throw new IllegalStateException("Failed to allocate floating IP - IP not found in response");
-			}
+			final WebResource service = client.resource(authInfo.getComputeServiceEndpointURL());
+			// not idempotent, a retried allocation that had reached the cloud would leak an IP
+			final FloatingIP floatingIp = retryPolicy.execute("Allocate floating IP", false, 0,
+					new RetryPolicy.Attempt<FloatingIP, OpenstackException>() {
+						public FloatingIP run()
+								throws OpenstackException {
+							return EssexResponseParser.parseFloatingIp(
+									service.path("/os-floating-ips").header("Content-type", "application/json")
+											.header("X-Auth-Token", authInfo.getToken())
+											.accept(MediaType.APPLICATION_JSON).post(InputStream.class, ""));
+						}
+					});
+			floatingIpsByAddress.put(floatingIp.getIp(), floatingIp);
+			return floatingIp.getIp();
 		} catch (final UniformInterfaceException e) {
 			logRestError(e);
 			throw new IllegalStateException("Failed to allocate floating IP", e);
+		} catch (final OpenstackException e) {
+			throw new IllegalStateException("Failed to allocate floating IP", e);
 		}
 
 	}
@@ -856,14 +1648,28 @@ public class OpenstackEssexDriver extends CloudDriverSupport implements Provisio
 	
 	public void addFloatingIP(final ServerInfo serverInfo, final String ip, final AuthInfo authInfo)
 			 {
+		addFloatingIP(serverInfo, ip, authInfo, 0);
+	}
 
-		service = client.resource(serverInfo.getUrl());
-		service.path("/action")
-				.header("Content-type", "application/json")
-				.header("X-Auth-Token", authInfo.getToken())
-				.accept(MediaType.APPLICATION_JSON)
-				.post(String.class,
-						String.format("{\"addFloatingIp\":{\"server\":\"%s\",\"address\":\"%s\"}}", serverInfo.getId(), ip));
+	private void addFloatingIP(final ServerInfo serverInfo, final String ip, final AuthInfo authInfo,
+			final long endTime) {
+
+		final WebResource service = client.resource(serverInfo.getUrl());
+		// associating the same address twice is harmless, and a server that just became active may still
+		// answer with a conflict
+		retryPolicy.execute("Associate floating IP " + ip + " with server " + serverInfo.getId(), true, endTime,
+				new RetryPolicy.Attempt<String, RuntimeException>() {
+					public String run() {
+						return service.path("/action")
+								.header("Content-type", "application/json")
+								.header("X-Auth-Token", authInfo.getToken())
+								.accept(MediaType.APPLICATION_JSON)
+								.post(String.class,
+										String.format("{\"addFloatingIp\":{\"server\":\"%s\",\"address\":\"%s\"}}",
+												serverInfo.getId(), ip));
+					}
+				});
+		serversByIp.put(ip, new ServerInfo(serverInfo.getId(), serverInfo.getUrl(), ip));
 
 	}
 
@@ -877,7 +1683,7 @@ public class OpenstackEssexDriver extends CloudDriverSupport implements Provisio
 	
 	public void detachFloatingIP(final ServerInfo serverInfo, final String ip, final AuthInfo authInfo) {
 
-		service = client.resource(serverInfo.getUrl());
+		final WebResource service = client.resource(serverInfo.getUrl());
 		service.path("/action")
 				.header("Content-type", "application/json")
 				.header("X-Auth-Token", authInfo.getToken())
@@ -888,8 +1694,18 @@ public class OpenstackEssexDriver extends CloudDriverSupport implements Provisio
 
 	}
 
+	/**********
+	 * Returns a cached keystone authentication token, logging in only if no valid token is cached.
+	 * 
+	 * @return the authentication token.
+	 */
+	private AuthInfo getAuthInfo() throws OpenstackException {
+		return tokenCache.get(tokenLoader);
+	}
+
 	/**********
 	 * Creates an openstack keystone authentication token.
+	 * Prefer {@link #getAuthInfo()}, which shares tokens between requests.
 	 * 
 	 * @return the authentication token.
 	 */
@@ -903,41 +1719,41 @@ public class OpenstackEssexDriver extends CloudDriverSupport implements Provisio
 
 		final WebResource service = client.resource(this.identityEndpoint);
 
-		final String response =
+		return EssexResponseParser.parseAuthInfo(
 				service.path("/v2.0/tokens").header("Content-Type", "application/json")
-						.accept(MediaType.APPLICATION_XML).post(String.class, json);
-		String authToken =null;
-		String computeServiceURL =null;
-		try{
-		DocumentBuilder db = createDocumentBuilder();
-		final Document xmlDoc = db.parse(new InputSource(new StringReader(response)));
-		 authToken = xpath.evaluate("//access/token/@id", xmlDoc);
-		 computeServiceURL = xpath.evaluate("//access/serviceCatalog/service[@name='Compute Service']/endpoint/@publicURL",xmlDoc);
-
-		} catch (final SAXException e) {
-			throw new OpenstackException("Failed to parse XML Response from server. Response was: " + response
-					+ ", Error was: " + e.getMessage(), e);
-		} catch (final XPathException e) {
-			throw new OpenstackException("Failed to parse XML Response from server. Response was: " + response
-					+ ", Error was: " + e.getMessage(), e);
-		} catch (final IOException e) {
-			throw new OpenstackException("Failed to send request to server. Response was: " + response
-					+ ", Error was: " + e.getMessage(), e);
-		}
-		return new AuthInfo(authToken, computeServiceURL);
+						.accept(MediaType.APPLICATION_XML).post(InputStream.class, json));
 		
 	}
 	
+	/**
+	 * @return the number of cloud calls retried after a transient failure.
+	 */
+	public long getRetryCount() {
+		return retryPolicy == null ? 0 : retryPolicy.getRetryCount();
+	}
+
+	/**
+	 * @return the statistics of the warm standby pool, or null if the template has no pool.
+	 */
+	public String getWarmPoolStats() {
+		final WarmStandbyPool pool = this.warmPool;
+		return pool == null ? null : pool.getStats();
+	}
+
 	/**
 	 * Checks if throttling is now activated, to avoid overloading the cloud.
+	 * Throttling is on while the circuit breaker of the compute endpoint is open. That is the endpoint of
+	 * the keystone service catalog, which Nova requests go to, or the configured one before the first login.
 	 * @return True if throttling is activate, false otherwise
 	 */
 	public boolean isThrottling() {
-		boolean throttling = false;
-		if (throttlingTimeout > 0 && throttlingTimeout - System.currentTimeMillis() > 0) {
-			throttling = true;
+		if (governor == null) {
+			return false;
 		}
-		
-		return throttling;
+		final AuthInfo authInfo = tokenCache == null ? null : tokenCache.peek();
+		if (authInfo != null && authInfo.getComputeServiceEndpointURL() != null) {
+			return governor.isOpen(authInfo.getComputeServiceEndpointURL());
+		}
+		return governor.isOpen(this.endpoint);
 	}
 }
\ No newline at end of file
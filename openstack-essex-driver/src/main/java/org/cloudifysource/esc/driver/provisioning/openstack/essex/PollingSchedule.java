@@ -0,0 +1,175 @@
+package org.cloudifysource.esc.driver.provisioning.openstack.essex;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Decides how long to wait between server status polls: a few fast polls first, then exponential
+ * backoff with jitter up to a cap. When waiting for a boot, the first poll is timed from how long
+ * earlier servers of the same image took to become ACTIVE.
+ *
+ * All settings are optional cloud custom fields:
+ * <ul>
+ * <li>openstack.polling.fastIntervalMillis - interval of the early polls (default 2 seconds)</li>
+ * <li>openstack.polling.fastPolls - number of early polls before backing off (default 5)</li>
+ * <li>openstack.polling.maxIntervalMillis - cap of the backoff interval (default 15 seconds)</li>
+ * <li>openstack.polling.backoffMultiplier - growth factor of the interval (default 1.5)</li>
+ * <li>openstack.polling.jitter - random fraction added to or removed from each interval (default 0.2)</li>
+ * </ul>
+ */
+public class PollingSchedule {
+
+	private static final String FAST_INTERVAL_MILLIS = "openstack.polling.fastIntervalMillis";
+	private static final String FAST_POLLS = "openstack.polling.fastPolls";
+	private static final String MAX_INTERVAL_MILLIS = "openstack.polling.maxIntervalMillis";
+	private static final String BACKOFF_MULTIPLIER = "openstack.polling.backoffMultiplier";
+	private static final String JITTER = "openstack.polling.jitter";
+
+	private static final long DEFAULT_FAST_INTERVAL_MILLIS = 2 * 1000; // 2 seconds
+	private static final int DEFAULT_FAST_POLLS = 5;
+	private static final long DEFAULT_MAX_INTERVAL_MILLIS = 15 * 1000; // 15 seconds
+	private static final double DEFAULT_BACKOFF_MULTIPLIER = 1.5;
+	private static final double DEFAULT_JITTER = 0.2;
+
+	// start polling a little before the expected boot time, fast polls cover the rest
+	private static final double BOOT_ESTIMATE_LEAD_FACTOR = 0.8;
+	// weight of the newest sample in the boot time moving average
+	private static final double BOOT_ESTIMATE_WEIGHT = 0.3;
+
+	private static final ConcurrentMap<String, Long> BOOT_TIME_ESTIMATES = new ConcurrentHashMap<String, Long>();
+	private static final Random RANDOM = new Random();
+
+	private final long fastIntervalMillis;
+	private final int fastPolls;
+	private final long maxIntervalMillis;
+	private final double backoffMultiplier;
+	private final double jitter;
+
+	public PollingSchedule(final long fastIntervalMillis, final int fastPolls, final long maxIntervalMillis,
+			final double backoffMultiplier, final double jitter) {
+		this.fastIntervalMillis = fastIntervalMillis;
+		this.fastPolls = fastPolls;
+		this.maxIntervalMillis = Math.max(fastIntervalMillis, maxIntervalMillis);
+		this.backoffMultiplier = Math.max(1, backoffMultiplier);
+		this.jitter = Math.max(0, Math.min(1, jitter));
+	}
+
+	/**
+	 * Creates a schedule from the cloud custom fields, using defaults for missing fields.
+	 *
+	 * @param custom the cloud custom map.
+	 * @return the schedule.
+	 */
+	public static PollingSchedule fromCustom(final Map<String, Object> custom) {
+		return new PollingSchedule(
+				CustomSettings.getLong(custom, FAST_INTERVAL_MILLIS, DEFAULT_FAST_INTERVAL_MILLIS),
+				CustomSettings.getInt(custom, FAST_POLLS, DEFAULT_FAST_POLLS),
+				CustomSettings.getLong(custom, MAX_INTERVAL_MILLIS, DEFAULT_MAX_INTERVAL_MILLIS),
+				CustomSettings.getDouble(custom, BACKOFF_MULTIPLIER, DEFAULT_BACKOFF_MULTIPLIER),
+				CustomSettings.getDouble(custom, JITTER, DEFAULT_JITTER));
+	}
+
+	/**
+	 * Starts a new wait that has no estimate for its first poll.
+	 *
+	 * @return the poller of the wait.
+	 */
+	public Poller start() {
+		return new Poller(fastIntervalMillis);
+	}
+
+	/**
+	 * Starts a new wait for a server of the given image to boot.
+	 *
+	 * @param imageId the image of the server.
+	 * @return the poller of the wait.
+	 */
+	public Poller startBoot(final String imageId) {
+		final Long estimate = imageId == null ? null : BOOT_TIME_ESTIMATES.get(imageId);
+		if (estimate == null) {
+			return new Poller(fastIntervalMillis);
+		}
+		return new Poller(Math.max(fastIntervalMillis, (long) (estimate * BOOT_ESTIMATE_LEAD_FACTOR)));
+	}
+
+	/**
+	 * Records how long a server of the given image took to boot, refining the estimate for the next boots.
+	 *
+	 * @param imageId the image of the server.
+	 * @param bootTimeMillis time from create request to ACTIVE.
+	 */
+	public static void recordBootTime(final String imageId, final long bootTimeMillis) {
+		if (imageId == null || bootTimeMillis <= 0) {
+			return;
+		}
+		while (true) {
+			final Long previous = BOOT_TIME_ESTIMATES.get(imageId);
+			if (previous == null) {
+				if (BOOT_TIME_ESTIMATES.putIfAbsent(imageId, bootTimeMillis) == null) {
+					return;
+				}
+			} else {
+				final long updated = (long) (BOOT_ESTIMATE_WEIGHT * bootTimeMillis
+						+ (1 - BOOT_ESTIMATE_WEIGHT) * previous);
+				if (BOOT_TIME_ESTIMATES.replace(imageId, previous, updated)) {
+					return;
+				}
+			}
+		}
+	}
+
+	private long applyJitter(final long interval) {
+		if (jitter == 0) {
+			return interval;
+		}
+		final double factor;
+		synchronized (RANDOM) {
+			factor = 1 + jitter * (2 * RANDOM.nextDouble() - 1);
+		}
+		return Math.max(1, (long) (interval * factor));
+	}
+
+	/**
+	 * The delays of a single wait. Not thread safe, each wait uses its own poller.
+	 */
+	public class Poller {
+
+		private final long firstDelay;
+		private int polls;
+		private long interval = fastIntervalMillis;
+
+		Poller(final long firstDelay) {
+			this.firstDelay = firstDelay;
+		}
+
+		/**
+		 * @return how long to wait before the next poll.
+		 */
+		public long nextDelay() {
+			++polls;
+			if (polls == 1) {
+				return applyJitter(firstDelay);
+			}
+			if (polls > fastPolls) {
+				interval = Math.min(maxIntervalMillis, (long) (interval * backoffMultiplier));
+			}
+			return applyJitter(interval);
+		}
+
+		/**
+		 * Sleeps until the next poll, but no later than the given deadline.
+		 *
+		 * @param endTime the deadline in epoch millis.
+		 * @throws InterruptedException .
+		 */
+		public void sleepUntilNextPoll(final long endTime)
+				throws InterruptedException {
+			final long delay = Math.min(nextDelay(), endTime - System.currentTimeMillis());
+			if (delay > 0) {
+				Thread.sleep(delay);
+			}
+		}
+	}
+}
@@ -0,0 +1,376 @@
+package org.cloudifysource.esc.driver.provisioning.openstack.essex;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Checks that newly started machines accept connections, multiplexing all pending machines on a
+ * single selector thread instead of blocking a thread per machine.
+ * Each attempt is a non-blocking connect with a short timeout, optionally followed by an HTTP GET
+ * that must answer with a 2xx status or by reading an SSH banner. Failed attempts are retried until the
+ * provisioning deadline.
+ *
+ */
+public class ReadinessProbeEngine {
+
+	/**
+	 * What a probe checks once connected.
+	 */
+	public enum ProbeType {
+		/** The connect alone is enough. */
+		TCP,
+		/**
+		 * GET a path and expect a 2xx status. The blocking check this replaced accepted 200 only; any
+		 * success status is accepted on purpose, since readiness pages often answer 204.
+		 */
+		HTTP,
+		/** Expect an SSH protocol banner. */
+		SSH
+	}
+
+	private static final Logger logger = Logger.getLogger(ReadinessProbeEngine.class.getName());
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final int RESPONSE_BUFFER_SIZE = 256;
+	private static final int HTTP_SUCCESS_MIN = 200;
+	private static final int HTTP_SUCCESS_MAX = 299;
+	private static final String SSH_BANNER_PREFIX = "SSH-";
+
+	private final Queue<Probe> newProbes = new ConcurrentLinkedQueue<Probe>();
+	// only accessed by the selector thread
+	private final List<Probe> probes = new LinkedList<Probe>();
+	private Selector selector;
+	private Thread selectorThread;
+	private volatile boolean closed;
+
+	/**
+	 * Starts probing a machine.
+	 *
+	 * @param host the address to probe.
+	 * @param port the port to probe.
+	 * @param type what to check once connected.
+	 * @param path the HTTP path, for HTTP probes.
+	 * @param attemptTimeoutMillis how long a single connect, and then a single response, may take.
+	 * @param retryIntervalMillis how long to wait between failed attempts.
+	 * @param endTime the deadline in epoch millis, after which the result fails with a TimeoutException.
+	 * @return a result completed once the machine is ready.
+	 */
+	public AsyncResult<Void> probe(final String host, final int port, final ProbeType type, final String path,
+			final long attemptTimeoutMillis, final long retryIntervalMillis, final long endTime) {
+		final Probe probe = new Probe(host, port, type, path, attemptTimeoutMillis, retryIntervalMillis, endTime);
+		synchronized (this) {
+			if (closed) {
+				throw new IllegalStateException("Readiness probe engine is closed");
+			}
+			ensureStarted();
+			newProbes.add(probe);
+		}
+		selector.wakeup();
+		return probe.result;
+	}
+
+	/**
+	 * Stops the selector thread. Pending probes fail.
+	 */
+	public synchronized void close() {
+		closed = true;
+		if (selector != null) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * @return true once the engine was closed.
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	private void ensureStarted() {
+		if (selectorThread != null) {
+			return;
+		}
+		try {
+			selector = Selector.open();
+		} catch (final IOException e) {
+			throw new IllegalStateException("Failed to open selector for readiness probes", e);
+		}
+		selectorThread = new Thread(new Runnable() {
+			public void run() {
+				runSelector();
+			}
+		}, "readiness-probe-selector");
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+	}
+
+	private void runSelector() {
+		long wakeupTime = 0;
+		while (!closed) {
+			try {
+				final long timeout = wakeupTime - System.currentTimeMillis();
+				if (wakeupTime == 0) {
+					selector.select();
+				} else if (timeout > 0) {
+					selector.select(timeout);
+				} else {
+					selector.selectNow();
+				}
+
+				final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					final SelectionKey key = keys.next();
+					keys.remove();
+					((Probe) key.attachment()).handle(key);
+				}
+
+				Probe added = newProbes.poll();
+				while (added != null) {
+					probes.add(added);
+					added = newProbes.poll();
+				}
+
+				wakeupTime = checkProbes(System.currentTimeMillis());
+			} catch (final Exception e) {
+				logger.log(Level.WARNING, "Unexpected error in readiness probe selector: " + e.getMessage(), e);
+			}
+		}
+
+		final IllegalStateException closedException = new IllegalStateException("Readiness probe engine was closed");
+		probes.addAll(newProbes);
+		for (final Probe probe : probes) {
+			probe.closeChannel();
+			probe.result.fail(closedException);
+		}
+		probes.clear();
+		try {
+			selector.close();
+		} catch (final IOException e) {
+			logger.log(Level.FINE, "Failed to close readiness probe selector", e);
+		}
+	}
+
+	/**
+	 * Starts due attempts, times out stalled attempts and expired probes.
+	 *
+	 * @return the next time a probe needs attention, or 0 if there are no probes.
+	 */
+	private long checkProbes(final long now) {
+		long wakeupTime = 0;
+		final Iterator<Probe> iterator = probes.iterator();
+		while (iterator.hasNext()) {
+			final Probe probe = iterator.next();
+			if (probe.result.isDone()) {
+				// succeeded, or cancelled by the caller
+				probe.closeChannel();
+				iterator.remove();
+				continue;
+			}
+			if (now >= probe.endTime) {
+				probe.closeChannel();
+				iterator.remove();
+				probe.result.fail(new TimeoutException(probe + " was not ready in the required time. Last error: "
+						+ probe.lastError));
+				continue;
+			}
+			if (probe.channel != null && now >= probe.attemptDeadline) {
+				probe.attemptFailed("timed out");
+			}
+			if (probe.channel == null && now >= probe.nextAttemptTime) {
+				probe.startAttempt(now);
+			}
+			if (probe.result.isDone()) {
+				continue;
+			}
+			final long due = Math.min(probe.endTime, probe.channel == null ? probe.nextAttemptTime
+					: probe.attemptDeadline);
+			if (wakeupTime == 0 || due < wakeupTime) {
+				wakeupTime = due;
+			}
+		}
+		return wakeupTime;
+	}
+
+	/**
+	 * The state of a single machine being probed. Only touched by the selector thread.
+	 */
+	private class Probe {
+
+		private final AsyncResult<Void> result = new AsyncResult<Void>();
+		private final String host;
+		private final int port;
+		private final ProbeType type;
+		private final ByteBuffer request;
+		private final ByteBuffer response = ByteBuffer.allocate(RESPONSE_BUFFER_SIZE);
+		private final long attemptTimeoutMillis;
+		private final long retryIntervalMillis;
+		private final long endTime;
+		private SocketChannel channel;
+		private long attemptDeadline;
+		private long nextAttemptTime;
+		private String lastError = "none";
+
+		Probe(final String host, final int port, final ProbeType type, final String path,
+				final long attemptTimeoutMillis, final long retryIntervalMillis, final long endTime) {
+			this.host = host;
+			this.port = port;
+			this.type = type;
+			this.attemptTimeoutMillis = attemptTimeoutMillis;
+			this.retryIntervalMillis = retryIntervalMillis;
+			this.endTime = endTime;
+			if (type == ProbeType.HTTP) {
+				final String get = "GET " + (path == null ? "/" : path) + " HTTP/1.0\r\nHost: " + host + ":" + port
+						+ "\r\nConnection: close\r\n\r\n";
+				this.request = ByteBuffer.wrap(get.getBytes(ASCII));
+			} else {
+				this.request = null;
+			}
+		}
+
+		void startAttempt(final long now) {
+			response.clear();
+			if (request != null) {
+				request.rewind();
+			}
+			attemptDeadline = now + attemptTimeoutMillis;
+			try {
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				if (channel.connect(new InetSocketAddress(host, port))) {
+					onConnected(now);
+				} else {
+					channel.register(selector, SelectionKey.OP_CONNECT, this);
+				}
+			} catch (final IOException e) {
+				attemptFailed(e.toString());
+			}
+		}
+
+		void handle(final SelectionKey key) {
+			try {
+				if (key.isConnectable()) {
+					if (channel.finishConnect()) {
+						onConnected(System.currentTimeMillis());
+					}
+				} else if (key.isWritable()) {
+					channel.write(request);
+					if (!request.hasRemaining()) {
+						interest(SelectionKey.OP_READ);
+					}
+				} else if (key.isReadable()) {
+					read();
+				}
+			} catch (final IOException e) {
+				attemptFailed(e.toString());
+			} catch (final CancelledKeyException e) {
+				attemptFailed("selection key cancelled");
+			}
+		}
+
+		private void onConnected(final long now)
+				throws IOException {
+			if (type == ProbeType.TCP) {
+				succeeded();
+				return;
+			}
+			// the connect succeeded, now give the service the same time to answer
+			attemptDeadline = now + attemptTimeoutMillis;
+			interest(type == ProbeType.HTTP ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+		}
+
+		private void interest(final int ops)
+				throws IOException {
+			final SelectionKey key = channel.keyFor(selector);
+			if (key == null) {
+				channel.register(selector, ops, this);
+			} else {
+				key.interestOps(ops);
+			}
+		}
+
+		private void read()
+				throws IOException {
+			final int read = channel.read(response);
+			final String received = new String(response.array(), 0, response.position(), ASCII);
+			if (type == ProbeType.SSH) {
+				if (received.length() >= SSH_BANNER_PREFIX.length()) {
+					if (received.startsWith(SSH_BANNER_PREFIX)) {
+						succeeded();
+					} else {
+						attemptFailed("unexpected banner: " + received.trim());
+					}
+					return;
+				}
+			} else {
+				final int lineEnd = received.indexOf('\n');
+				if (lineEnd >= 0 || !response.hasRemaining() || read < 0) {
+					final String statusLine = lineEnd >= 0 ? received.substring(0, lineEnd).trim() : received.trim();
+					final int status = getHttpStatus(statusLine);
+					if (status >= HTTP_SUCCESS_MIN && status <= HTTP_SUCCESS_MAX) {
+						succeeded();
+					} else {
+						attemptFailed("unexpected response: " + statusLine);
+					}
+					return;
+				}
+			}
+			if (read < 0) {
+				attemptFailed("connection closed by peer");
+			}
+		}
+
+		private int getHttpStatus(final String statusLine) {
+			final String[] parts = statusLine.split(" ");
+			if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+				return -1;
+			}
+			try {
+				return Integer.parseInt(parts[1]);
+			} catch (final NumberFormatException e) {
+				return -1;
+			}
+		}
+
+		private void succeeded() {
+			closeChannel();
+			logger.info(this + " responded so its ready.");
+			result.complete(null);
+		}
+
+		void attemptFailed(final String reason) {
+			closeChannel();
+			lastError = reason;
+			nextAttemptTime = System.currentTimeMillis() + retryIntervalMillis;
+			logger.fine("Unable to reach " + this + " (" + reason + ") ...waiting");
+		}
+
+		void closeChannel() {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (final IOException e) {
+					logger.log(Level.FINE, "Failed to close probe channel to " + this, e);
+				}
+				channel = null;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return type + " probe of " + host + ":" + port;
+		}
+	}
+}
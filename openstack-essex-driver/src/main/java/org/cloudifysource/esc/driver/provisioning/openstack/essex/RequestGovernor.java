@@ -0,0 +1,248 @@
+package org.cloudifysource.esc.driver.provisioning.openstack.essex;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientRequest;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.client.filter.ClientFilter;
+
+/**
+ * Paces all requests to the cloud and stops sending them while the cloud is failing.
+ * Each endpoint (host and port) has a token bucket that bursts up to openstack.governor.burst
+ * requests and then lets openstack.governor.requestsPerSecond through, making callers wait for
+ * their turn instead of failing. Each endpoint also has a circuit breaker: a server error or a
+ * connection failure opens it for openstack.governor.openMillis, during which requests fail fast
+ * with a {@link CircuitOpenException}. After that a single probe request is let through, and the
+ * circuit closes as soon as one succeeds.
+ */
+public class RequestGovernor extends ClientFilter {
+
+	/**
+	 * Thrown instead of sending a request while the circuit of its endpoint is open.
+	 */
+	public static class CircuitOpenException extends ClientHandlerException {
+
+		private static final long serialVersionUID = 1L;
+
+		private final long retryAfterMillis;
+
+		public CircuitOpenException(final String message, final long retryAfterMillis) {
+			super(message);
+			this.retryAfterMillis = retryAfterMillis;
+		}
+
+		/**
+		 * @return how long until the circuit lets a probe request through.
+		 */
+		public long getRetryAfterMillis() {
+			return retryAfterMillis;
+		}
+	}
+
+	private static final String REQUESTS_PER_SECOND = "openstack.governor.requestsPerSecond";
+	private static final String BURST = "openstack.governor.burst";
+	private static final String OPEN_MILLIS = "openstack.governor.openMillis";
+
+	private static final double DEFAULT_REQUESTS_PER_SECOND = 10;
+	private static final int DEFAULT_BURST = 20;
+	private static final long DEFAULT_OPEN_MILLIS = 30 * 1000; // 30 seconds
+	private static final int SERVER_ERROR = 500;
+
+	private static final Logger logger = Logger.getLogger(RequestGovernor.class.getName());
+
+	private static final ConcurrentMap<String, RequestGovernor> GOVERNORS =
+			new ConcurrentHashMap<String, RequestGovernor>();
+
+	private final double requestsPerSecond;
+	private final int burst;
+	private final long openMillis;
+	private final ConcurrentMap<String, EndpointState> endpoints = new ConcurrentHashMap<String, EndpointState>();
+
+	RequestGovernor(final double requestsPerSecond, final int burst, final long openMillis) {
+		this.requestsPerSecond = requestsPerSecond;
+		this.burst = Math.max(1, burst);
+		this.openMillis = openMillis;
+	}
+
+	/**
+	 * Returns the governor of the client of the given compute endpoint and governor settings, creating it
+	 * from the cloud custom fields if it does not exist yet. A requestsPerSecond of 0 disables rate limiting.
+	 * Clouds that configure the same endpoint differently get governors of their own.
+	 *
+	 * @param endpoint the compute endpoint.
+	 * @param custom the cloud custom map.
+	 * @return the shared governor.
+	 */
+	public static RequestGovernor getGovernor(final String endpoint, final Map<String, Object> custom) {
+		final double requestsPerSecond =
+				CustomSettings.getDouble(custom, REQUESTS_PER_SECOND, DEFAULT_REQUESTS_PER_SECOND);
+		final int burst = CustomSettings.getInt(custom, BURST, DEFAULT_BURST);
+		final long openMillis = CustomSettings.getLong(custom, OPEN_MILLIS, DEFAULT_OPEN_MILLIS);
+		final String key = endpoint + "|" + getSettingsKey(custom);
+		RequestGovernor governor = GOVERNORS.get(key);
+		if (governor == null) {
+			final RequestGovernor newGovernor = new RequestGovernor(requestsPerSecond, burst, openMillis);
+			governor = GOVERNORS.putIfAbsent(key, newGovernor);
+			if (governor == null) {
+				governor = newGovernor;
+			}
+		}
+		return governor;
+	}
+
+	/**
+	 * @param custom the cloud custom map.
+	 * @return a key that differs for any two different governor settings.
+	 */
+	static String getSettingsKey(final Map<String, Object> custom) {
+		return CustomSettings.getDouble(custom, REQUESTS_PER_SECOND, DEFAULT_REQUESTS_PER_SECOND) + "|"
+				+ CustomSettings.getInt(custom, BURST, DEFAULT_BURST) + "|"
+				+ CustomSettings.getLong(custom, OPEN_MILLIS, DEFAULT_OPEN_MILLIS);
+	}
+
+	@Override
+	public ClientResponse handle(final ClientRequest request)
+			throws ClientHandlerException {
+		final EndpointState endpoint = getEndpointState(request.getURI());
+		// a request refused by an open circuit must not use up the rate budget
+		final boolean probe = endpoint.beforeRequest();
+		try {
+			endpoint.acquirePermit();
+		} catch (final RuntimeException e) {
+			endpoint.abandonRequest(probe);
+			throw e;
+		}
+		final ClientResponse response;
+		try {
+			response = getNext().handle(request);
+		} catch (final RuntimeException e) {
+			endpoint.afterRequest(probe, false);
+			throw e;
+		}
+		endpoint.afterRequest(probe, response.getStatus() < SERVER_ERROR);
+		return response;
+	}
+
+	/**
+	 * @param uri any URI of the endpoint.
+	 * @return true if requests to the endpoint are currently refused.
+	 */
+	public boolean isOpen(final String uri) {
+		final EndpointState endpoint = endpoints.get(getEndpointKey(URI.create(uri)));
+		return endpoint != null && endpoint.isOpen();
+	}
+
+	private EndpointState getEndpointState(final URI uri) {
+		final String key = getEndpointKey(uri);
+		EndpointState endpoint = endpoints.get(key);
+		if (endpoint == null) {
+			final EndpointState newEndpoint = new EndpointState(key);
+			endpoint = endpoints.putIfAbsent(key, newEndpoint);
+			if (endpoint == null) {
+				endpoint = newEndpoint;
+			}
+		}
+		return endpoint;
+	}
+
+	private static String getEndpointKey(final URI uri) {
+		return uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+	}
+
+	/**
+	 * The token bucket and circuit of one endpoint.
+	 */
+	private class EndpointState {
+
+		private final String name;
+		private double tokens = burst;
+		private long lastRefill = System.nanoTime();
+		private long openUntil;
+		private boolean open;
+		private boolean probeInFlight;
+
+		EndpointState(final String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Takes a token, waiting for the bucket to refill if needed. A waiting caller reserves its token
+		 * up front, so callers are served in the order they arrived.
+		 */
+		void acquirePermit() {
+			if (requestsPerSecond <= 0) {
+				return;
+			}
+			final long waitNanos;
+			synchronized (this) {
+				final long now = System.nanoTime();
+				tokens = Math.min(burst, tokens + (now - lastRefill) * requestsPerSecond / 1e9);
+				lastRefill = now;
+				tokens -= 1;
+				waitNanos = tokens >= 0 ? 0 : (long) (-tokens / requestsPerSecond * 1e9);
+			}
+			if (waitNanos > 0) {
+				try {
+					Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new ClientHandlerException("Interrupted while waiting to send a request to " + name, e);
+				}
+			}
+		}
+
+		/**
+		 * @return true if this request is the probe of a half open circuit.
+		 */
+		synchronized boolean beforeRequest() {
+			if (!open) {
+				return false;
+			}
+			final long now = System.currentTimeMillis();
+			if (now < openUntil || probeInFlight) {
+				throw new CircuitOpenException("Requests to " + name + " are suspended after a cloud failure",
+						Math.max(0, openUntil - now));
+			}
+			probeInFlight = true;
+			logger.info("Sending a probe request to " + name + " to check if the cloud has recovered");
+			return true;
+		}
+
+		/**
+		 * Called for a request that passed the circuit check but was never sent.
+		 */
+		synchronized void abandonRequest(final boolean probe) {
+			if (probe) {
+				probeInFlight = false;
+			}
+		}
+
+		synchronized void afterRequest(final boolean probe, final boolean succeeded) {
+			if (probe) {
+				probeInFlight = false;
+			}
+			if (succeeded) {
+				if (open) {
+					logger.info("Cloud endpoint " + name + " recovered, resuming requests");
+					open = false;
+				}
+			} else {
+				if (!open || probe) {
+					logger.warning("Cloud endpoint " + name + " failed, suspending requests for " + openMillis
+							+ " ms");
+				}
+				open = true;
+				openUntil = System.currentTimeMillis() + openMillis;
+			}
+		}
+
+		synchronized boolean isOpen() {
+			return open && (System.currentTimeMillis() < openUntil || probeInFlight);
+		}
+	}
+}
@@ -0,0 +1,184 @@
+package org.cloudifysource.esc.driver.provisioning.openstack.essex;
+
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.sun.jersey.api.client.UniformInterfaceException;
+
+/**
+ * Retries single cloud calls that failed for a transient reason, with exponential backoff and jitter,
+ * so one hiccup of the cloud does not throw away a server that is half way through booting.
+ *
+ * Failures where the request never reached the cloud (connection refused, suspended by the
+ * {@link RequestGovernor}) and 503 responses are always retried. Server errors (500), conflicts (409)
+ * and broken connections are only retried for idempotent calls, since the cloud may already have acted
+ * on the request. Retries stop at the caller's deadline.
+ *
+ * Configured by the cloud custom fields openstack.retry.maxAttempts, openstack.retry.initialDelayMillis,
+ * openstack.retry.maxDelayMillis and openstack.retry.maxElapsedMillis, the last one bounding calls made
+ * without a deadline.
+ */
+public class RetryPolicy {
+
+	/**
+	 * A single attempt of a cloud call.
+	 *
+	 * @param <T> the result type.
+	 * @param <E> the checked exception of the call.
+	 */
+	public interface Attempt<T, E extends Exception> {
+
+		/**
+		 * @return the result of the call.
+		 * @throws E if the call failed.
+		 */
+		T run()
+				throws E;
+	}
+
+	private static final String MAX_ATTEMPTS = "openstack.retry.maxAttempts";
+	private static final String INITIAL_DELAY_MILLIS = "openstack.retry.initialDelayMillis";
+	private static final String MAX_DELAY_MILLIS = "openstack.retry.maxDelayMillis";
+	private static final String MAX_ELAPSED_MILLIS = "openstack.retry.maxElapsedMillis";
+
+	private static final int DEFAULT_MAX_ATTEMPTS = 5;
+	private static final long DEFAULT_INITIAL_DELAY_MILLIS = 1000;
+	private static final long DEFAULT_MAX_DELAY_MILLIS = 15000;
+	private static final long DEFAULT_MAX_ELAPSED_MILLIS = 60000;
+
+	private static final int SERVER_ERROR = 500;
+	private static final int SERVICE_UNAVAILABLE = 503;
+	private static final int CONFLICT = 409;
+
+	private static final Logger logger = Logger.getLogger(RetryPolicy.class.getName());
+	private static final Random RANDOM = new Random();
+
+	private final int maxAttempts;
+	private final long initialDelayMillis;
+	private final long maxDelayMillis;
+	private final long maxElapsedMillis;
+	private final AtomicLong retries = new AtomicLong();
+
+	RetryPolicy(final int maxAttempts, final long initialDelayMillis, final long maxDelayMillis,
+			final long maxElapsedMillis) {
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.initialDelayMillis = Math.max(1, initialDelayMillis);
+		this.maxDelayMillis = Math.max(this.initialDelayMillis, maxDelayMillis);
+		this.maxElapsedMillis = maxElapsedMillis;
+	}
+
+	/**
+	 * Creates a policy from the cloud custom fields openstack.retry.*, using defaults for missing fields.
+	 *
+	 * @param custom the cloud custom map.
+	 * @return the policy.
+	 */
+	public static RetryPolicy fromCustom(final Map<String, Object> custom) {
+		return new RetryPolicy(
+				CustomSettings.getInt(custom, MAX_ATTEMPTS, DEFAULT_MAX_ATTEMPTS),
+				CustomSettings.getLong(custom, INITIAL_DELAY_MILLIS, DEFAULT_INITIAL_DELAY_MILLIS),
+				CustomSettings.getLong(custom, MAX_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS),
+				CustomSettings.getLong(custom, MAX_ELAPSED_MILLIS, DEFAULT_MAX_ELAPSED_MILLIS));
+	}
+
+	/**
+	 * Runs a call, retrying transient failures.
+	 *
+	 * @param operation describes the call in log messages.
+	 * @param idempotent true if repeating the call after it reached the cloud is harmless.
+	 * @param endTime the caller's deadline in epoch millis, or 0 to use openstack.retry.maxElapsedMillis.
+	 * @param attempt the call.
+	 * @param <T> the result type.
+	 * @param <E> the checked exception of the call.
+	 * @return the result of the first successful attempt.
+	 * @throws E the failure of the last attempt.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T, E extends Exception> T execute(final String operation, final boolean idempotent, final long endTime,
+			final Attempt<T, E> attempt)
+			throws E {
+		final long deadline = endTime > 0 ? endTime : System.currentTimeMillis() + maxElapsedMillis;
+		int attemptNumber = 1;
+		while (true) {
+			try {
+				return attempt.run();
+			} catch (final Exception e) {
+				final long delay = getDelay(attemptNumber, e);
+				if (attemptNumber >= maxAttempts || !isRetryable(e, idempotent)
+						|| System.currentTimeMillis() + delay >= deadline) {
+					if (e instanceof RuntimeException) {
+						throw (RuntimeException) e;
+					}
+					throw (E) e;
+				}
+
+				retries.incrementAndGet();
+				logger.warning(operation + " failed (" + e.getMessage() + "), retrying in " + delay + " ms");
+				if (e instanceof UniformInterfaceException) {
+					// hand the pooled connection back, nobody will read this response
+					((UniformInterfaceException) e).getResponse().close();
+				}
+				try {
+					Thread.sleep(delay);
+				} catch (final InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					if (e instanceof RuntimeException) {
+						throw (RuntimeException) e;
+					}
+					throw (E) e;
+				}
+				attemptNumber++;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of retries so far, a measure of cloud health.
+	 */
+	public long getRetryCount() {
+		return retries.get();
+	}
+
+	private long getDelay(final int attemptNumber, final Exception e) {
+		final long backoff = (long) Math.min(maxDelayMillis, initialDelayMillis * Math.pow(2, attemptNumber - 1));
+		final long jittered;
+		synchronized (RANDOM) {
+			jittered = backoff / 2 + (long) (RANDOM.nextDouble() * (backoff / 2));
+		}
+		final RequestGovernor.CircuitOpenException circuitOpen = findCause(e, RequestGovernor.CircuitOpenException.class);
+		if (circuitOpen != null) {
+			// no point in trying before the circuit lets a probe through
+			return Math.max(jittered, circuitOpen.getRetryAfterMillis());
+		}
+		return jittered;
+	}
+
+	private static boolean isRetryable(final Exception e, final boolean idempotent) {
+		if (findCause(e, RequestGovernor.CircuitOpenException.class) != null
+				|| findCause(e, ConnectException.class) != null) {
+			// the request was never sent
+			return true;
+		}
+		final UniformInterfaceException uie = findCause(e, UniformInterfaceException.class);
+		if (uie != null) {
+			final int status = uie.getResponse().getStatus();
+			return status == SERVICE_UNAVAILABLE || idempotent && (status == SERVER_ERROR || status == CONFLICT);
+		}
+		return idempotent
+				&& (findCause(e, SocketException.class) != null || findCause(e, SocketTimeoutException.class) != null);
+	}
+
+	private static <C extends Throwable> C findCause(final Throwable e, final Class<C> type) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (type.isInstance(cause)) {
+				return type.cast(cause);
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,120 @@
+package org.cloudifysource.esc.driver.provisioning.openstack.essex;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.logging.Logger;
+
+import org.cloudifysource.esc.driver.provisioning.openstack.Node;
+
+/**
+ * A local copy of the servers of the tenant, kept up to date with /servers/detail?changes-since so that
+ * each sync only downloads and parses the servers that changed since the previous one, including the
+ * ones that were deleted. A full listing is made on the first sync and then every
+ * {@value #FULL_SYNC_INTERVAL_MILLIS} ms, in case the cloud purged deleted servers before they were seen.
+ *
+ * The changes-since marker is taken from the update times reported by Nova, so the local clock does not
+ * need to agree with the cloud's.
+ */
+public class ServerInventory {
+
+	/**
+	 * Lists servers of the tenant.
+	 */
+	public interface ServerFetcher {
+
+		/**
+		 * @param changesSince an ISO 8601 time, or null for a full listing.
+		 * @return the servers, with deleted servers in the DELETED status if changesSince is set.
+		 * @throws Exception if the servers could not be listed.
+		 */
+		List<Node> fetch(String changesSince)
+				throws Exception;
+	}
+
+	private static final Logger logger = Logger.getLogger(ServerInventory.class.getName());
+	private static final String STATUS_DELETED = "DELETED";
+
+	private static final long FULL_SYNC_INTERVAL_MILLIS = 10 * 60 * 1000; // 10 minutes
+	// update times have a resolution of a second, ask again for changes made in the last seconds
+	private static final long MARKER_OVERLAP_MILLIS = 5 * 1000;
+
+	private final ServerFetcher fetcher;
+	private final Map<String, EssexNode> servers = new LinkedHashMap<String, EssexNode>();
+	private long lastUpdated = -1;
+	private long lastFullSync;
+
+	/**
+	 * @param fetcher lists the servers.
+	 */
+	public ServerInventory(final ServerFetcher fetcher) {
+		this.fetcher = fetcher;
+	}
+
+	/**
+	 * Brings the inventory up to date with the cloud.
+	 *
+	 * @return all servers of the tenant.
+	 * @throws Exception if the servers could not be listed, the inventory is unchanged in that case.
+	 */
+	public synchronized List<Node> sync()
+			throws Exception {
+		final long now = System.currentTimeMillis();
+		if (lastUpdated < 0 || now - lastFullSync >= FULL_SYNC_INTERVAL_MILLIS) {
+			final List<Node> nodes = fetcher.fetch(null);
+			servers.clear();
+			lastUpdated = -1;
+			for (final Node node : nodes) {
+				put((EssexNode) node);
+			}
+			lastFullSync = now;
+			logger.fine("Full server sync, " + servers.size() + " servers");
+		} else {
+			final List<Node> changes = fetcher.fetch(formatTime(lastUpdated - MARKER_OVERLAP_MILLIS));
+			for (final Node node : changes) {
+				final EssexNode essexNode = (EssexNode) node;
+				final EssexNode known = servers.get(essexNode.getId());
+				if (known != null && known.getUpdated() > essexNode.getUpdated()) {
+					continue;
+				}
+				if (STATUS_DELETED.equalsIgnoreCase(essexNode.getStatus())) {
+					servers.remove(essexNode.getId());
+					lastUpdated = Math.max(lastUpdated, essexNode.getUpdated());
+				} else {
+					put(essexNode);
+				}
+			}
+			logger.fine("Incremental server sync, " + changes.size() + " changes, " + servers.size() + " servers");
+		}
+		return getServers();
+	}
+
+	/**
+	 * @return true once the inventory holds a listing of the tenant.
+	 */
+	public synchronized boolean isSynced() {
+		return lastFullSync > 0;
+	}
+
+	/**
+	 * @return the servers as of the last sync.
+	 */
+	public synchronized List<Node> getServers() {
+		return new ArrayList<Node>(servers.values());
+	}
+
+	private void put(final EssexNode node) {
+		servers.put(node.getId(), node);
+		lastUpdated = Math.max(lastUpdated, node.getUpdated());
+	}
+
+	private static String formatTime(final long time) {
+		final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(new Date(time));
+	}
+}
@@ -0,0 +1,233 @@
+package org.cloudifysource.esc.driver.provisioning.openstack.essex;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.cloudifysource.esc.driver.provisioning.openstack.Node;
+import org.cloudifysource.esc.driver.provisioning.openstack.OpenstackException;
+
+/**
+ * Watches the status of all servers a driver is waiting for with a single thread and a single server
+ * listing per tick, so the number of polling requests does not grow with the number of servers in flight.
+ * Each watch keeps its own {@link PollingSchedule.Poller}; a tick happens when the earliest watch is due,
+ * and its listing is used to check every watch.
+ *
+ */
+public class ServerStatusWatcher {
+
+	/**
+	 * Lists the servers of the tenant.
+	 */
+	public interface ServerSource {
+
+		/**
+		 * @return all servers, with their status.
+		 * @throws Exception if the servers could not be listed.
+		 */
+		List<Node> listServers()
+				throws Exception;
+	}
+
+	private static final Logger logger = Logger.getLogger(ServerStatusWatcher.class.getName());
+	private static final String STATUS_DELETED = "DELETED";
+
+	private final ServerSource source;
+	private final ScheduledExecutorService scheduler;
+	private final List<Watch> watches = new LinkedList<Watch>();
+	private ScheduledFuture<?> nextTick;
+	private long nextTickTime;
+	private boolean closed;
+
+	/**
+	 * @param source lists the servers on each tick.
+	 */
+	public ServerStatusWatcher(final ServerSource source) {
+		this.source = source;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, "server-status-watcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Waits for a server to reach a status. The result completes with the server once it has the status,
+	 * or with null if the status is DELETED and the server is gone. It fails with an
+	 * {@link OpenstackException} if the server reaches an error status or disappears, and with a
+	 * {@link TimeoutException} after the deadline. Cancelling the result stops the watch.
+	 *
+	 * @param serverId the server.
+	 * @param status the expected status.
+	 * @param poller paces the polls of this watch.
+	 * @param endTime the deadline in epoch millis.
+	 * @return the result of the watch.
+	 */
+	public AsyncResult<EssexNode> watch(final String serverId, final String status,
+			final PollingSchedule.Poller poller, final long endTime) {
+		final Watch watch = new Watch(serverId, status, poller, endTime);
+		synchronized (this) {
+			if (closed) {
+				throw new IllegalStateException("Server status watcher is closed");
+			}
+			watches.add(watch);
+			scheduleTick(watch.due);
+		}
+		return watch.result;
+	}
+
+	/**
+	 * Stops the watcher. Pending watches fail.
+	 */
+	public void close() {
+		final List<Watch> pending;
+		synchronized (this) {
+			closed = true;
+			pending = new LinkedList<Watch>(watches);
+			watches.clear();
+		}
+		scheduler.shutdownNow();
+		final IllegalStateException closedException = new IllegalStateException("Server status watcher was closed");
+		for (final Watch watch : pending) {
+			watch.result.fail(closedException);
+		}
+	}
+
+	/**
+	 * @return true once the watcher was closed.
+	 */
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return the number of servers being watched.
+	 */
+	public synchronized int size() {
+		return watches.size();
+	}
+
+	private void scheduleTick(final long due) {
+		if (nextTick != null && nextTickTime <= due) {
+			return;
+		}
+		if (nextTick != null) {
+			nextTick.cancel(false);
+		}
+		nextTickTime = due;
+		nextTick = scheduler.schedule(new Runnable() {
+			public void run() {
+				tick();
+			}
+		}, Math.max(0, due - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+	}
+
+	private void tick() {
+		final List<Watch> current;
+		synchronized (this) {
+			nextTick = null;
+			current = new LinkedList<Watch>(watches);
+		}
+		if (current.isEmpty()) {
+			return;
+		}
+
+		Map<String, Node> servers = null;
+		try {
+			final List<Node> nodes = source.listServers();
+			servers = new HashMap<String, Node>(nodes.size());
+			for (final Node node : nodes) {
+				servers.put(node.getId(), node);
+			}
+		} catch (final Exception e) {
+			logger.log(Level.WARNING, "Failed to list servers for " + current.size() + " watched servers: "
+					+ e.getMessage(), e);
+		}
+
+		final long now = System.currentTimeMillis();
+		for (final Watch watch : current) {
+			if (servers != null && !watch.result.isDone()) {
+				watch.check(servers.get(watch.serverId));
+			}
+			if (!watch.result.isDone() && now >= watch.endTime) {
+				watch.result.fail(new TimeoutException("Timeout waiting for server " + watch.serverId
+						+ " to reach status " + watch.status + ". Last status: " + watch.lastStatus));
+			}
+			if (!watch.result.isDone() && now >= watch.due) {
+				watch.due = Math.min(watch.endTime, now + watch.poller.nextDelay());
+			}
+		}
+
+		synchronized (this) {
+			long due = 0;
+			final Iterator<Watch> iterator = watches.iterator();
+			while (iterator.hasNext()) {
+				final Watch watch = iterator.next();
+				if (watch.result.isDone()) {
+					iterator.remove();
+				} else if (due == 0 || watch.due < due) {
+					due = watch.due;
+				}
+			}
+			if (due > 0 && !closed) {
+				scheduleTick(due);
+			}
+		}
+	}
+
+	/**
+	 * A server being waited for. Only touched by the watcher thread after it was registered.
+	 */
+	private static class Watch {
+
+		private final AsyncResult<EssexNode> result = new AsyncResult<EssexNode>();
+		private final String serverId;
+		private final String status;
+		private final PollingSchedule.Poller poller;
+		private final long endTime;
+		private volatile long due;
+		private String lastStatus;
+		private boolean seen;
+
+		Watch(final String serverId, final String status, final PollingSchedule.Poller poller, final long endTime) {
+			this.serverId = serverId;
+			this.status = status;
+			this.poller = poller;
+			this.endTime = endTime;
+			this.due = Math.min(endTime, System.currentTimeMillis() + poller.nextDelay());
+		}
+
+		void check(final Node node) {
+			final boolean waitingForDelete = STATUS_DELETED.equalsIgnoreCase(status);
+			if (node == null) {
+				if (waitingForDelete) {
+					result.complete(null);
+				} else if (seen) {
+					result.fail(new OpenstackException("Server " + serverId + " disappeared while waiting for status "
+							+ status + ". Last status: " + lastStatus));
+				}
+				return;
+			}
+			seen = true;
+			lastStatus = node.getStatus();
+			if (status.equalsIgnoreCase(lastStatus)) {
+				result.complete((EssexNode) node);
+			} else if (!waitingForDelete && lastStatus.toLowerCase().contains("error")) {
+				result.fail(new OpenstackException("Server provisioning failed. Node ID: " + serverId + ", status: "
+						+ lastStatus));
+			}
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package org.cloudifysource.esc.driver.provisioning.openstack.essex;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.cloudifysource.esc.driver.provisioning.MachineDetails;
+
+/**
+ * Keeps a fixed number of machines booted ahead of demand, with their floating IPs attached and
+ * readiness confirmed, so a machine request can be answered right away. Each machine handed out is
+ * replaced in the background.
+ *
+ * Keeps hit and miss counts, and the total time pooled machines spent idle, which is what the pool costs.
+ */
+public class WarmStandbyPool {
+
+	/**
+	 * Starts and stops the machines of the pool.
+	 */
+	public interface MachineSource {
+
+		/**
+		 * Starts a machine and waits until it is ready.
+		 *
+		 * @return the machine.
+		 * @throws Exception if the machine could not be started.
+		 */
+		MachineDetails start()
+				throws Exception;
+
+		/**
+		 * Shuts a machine down.
+		 *
+		 * @param machine the machine.
+		 * @throws Exception if the machine could not be shut down.
+		 */
+		void stop(MachineDetails machine)
+				throws Exception;
+	}
+
+	private static final Logger logger = Logger.getLogger(WarmStandbyPool.class.getName());
+
+	// after a failed start, wait before trying again so a broken template does not hammer the cloud
+	private static final long FAILED_START_BACKOFF_MILLIS = 30 * 1000;
+
+	private final int size;
+	private final MachineSource source;
+	private final LinkedList<PooledMachine> available = new LinkedList<PooledMachine>();
+	private final ExecutorService filler;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong idleMillis = new AtomicLong();
+	private int starting;
+	private boolean closed;
+
+	/**
+	 * @param name names the filler threads.
+	 * @param size the number of machines to keep ready.
+	 * @param source starts and stops the machines.
+	 */
+	public WarmStandbyPool(final String name, final int size, final MachineSource source) {
+		this.size = size;
+		this.source = source;
+		this.filler = Executors.newFixedThreadPool(Math.max(1, size), new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, "warm-standby-pool-" + name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		fill();
+	}
+
+	/**
+	 * Takes a ready machine from the pool, and starts booting its replacement.
+	 *
+	 * @return the machine, or null if the pool is empty.
+	 */
+	public MachineDetails take() {
+		final PooledMachine pooled;
+		synchronized (this) {
+			pooled = available.poll();
+		}
+		if (pooled == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		idleMillis.addAndGet(System.currentTimeMillis() - pooled.readySince);
+		fill();
+		return pooled.machine;
+	}
+
+	/**
+	 * Stops refilling the pool and shuts down all pooled machines. Machines still booting are shut down
+	 * once they are up.
+	 */
+	public void drain() {
+		final List<PooledMachine> toStop;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			toStop = new ArrayList<PooledMachine>(available);
+			available.clear();
+		}
+		filler.shutdown();
+		for (final PooledMachine pooled : toStop) {
+			idleMillis.addAndGet(System.currentTimeMillis() - pooled.readySince);
+			stop(pooled.machine);
+		}
+		logger.info("Drained warm standby pool. " + getStats());
+	}
+
+	/**
+	 * @return the number of machines ready to be handed out.
+	 */
+	public synchronized int size() {
+		return available.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the total time, in milliseconds, that machines spent waiting in the pool.
+	 */
+	public long getIdleMillis() {
+		return idleMillis.get();
+	}
+
+	/**
+	 * @return a one line summary of the pool statistics.
+	 */
+	public String getStats() {
+		return "Warm standby pool: hits=" + getHits() + ", misses=" + getMisses() + ", idle machine seconds="
+				+ getIdleMillis() / 1000;
+	}
+
+	private void fill() {
+		synchronized (this) {
+			while (!closed && available.size() + starting < size) {
+				starting++;
+				filler.execute(new Runnable() {
+					public void run() {
+						startOne();
+					}
+				});
+			}
+		}
+	}
+
+	private void startOne() {
+		MachineDetails machine = null;
+		try {
+			machine = source.start();
+		} catch (final Exception e) {
+			logger.log(Level.WARNING, "Failed to start a machine for the warm standby pool: " + e.getMessage(), e);
+			sleepAfterFailure();
+		}
+
+		boolean stopMachine = false;
+		synchronized (this) {
+			starting--;
+			if (machine != null) {
+				if (closed) {
+					stopMachine = true;
+				} else {
+					available.add(new PooledMachine(machine));
+				}
+			}
+		}
+		if (stopMachine) {
+			stop(machine);
+		} else {
+			fill();
+		}
+	}
+
+	private void sleepAfterFailure() {
+		try {
+			Thread.sleep(FAILED_START_BACKOFF_MILLIS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void stop(final MachineDetails machine) {
+		try {
+			source.stop(machine);
+		} catch (final Exception e) {
+			logger.log(Level.WARNING, "Failed to shut down pooled machine " + machine.getMachineId()
+					+ ". It may be leaking. Error was: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * A ready machine and the time it became ready.
+	 */
+	private static class PooledMachine {
+
+		private final MachineDetails machine;
+		private final long readySince = System.currentTimeMillis();
+
+		PooledMachine(final MachineDetails machine) {
+			this.machine = machine;
+		}
+	}
+}
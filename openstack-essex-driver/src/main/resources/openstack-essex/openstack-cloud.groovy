@@ -46,7 +46,14 @@ cloud {
 						"openstack.securityGroup" : "default",
 						"openstack.keyPair" : "smxkey",
 						// indicates if a floating IP should be assigned to this machine. Defaults to true.
-						"openstack.allocate-floating-ip" : "true"
+						"openstack.allocate-floating-ip" : "true",
+						// Optional. How to check that a new machine is ready: http (default), ssh or tcp.
+						"openstack.readiness.type" : "http",
+						"openstack.readiness.port" : "7777",
+						"openstack.readiness.path" : "/",
+						"openstack.readiness.connectTimeoutMillis" : "5000",
+						// Optional. Number of ready machines to keep booted ahead of demand. Defaults to 0 (no pool).
+						"openstack.warmPool.size" : "0"
 					])
 					
 				},
@@ -115,7 +122,33 @@ cloud {
 		"openstack.tenant" : "admin",
 		"openstack.username" : "admin",
 		"openstack.password" : "admin",
-		"openstack.wireLog": "false"
+		"openstack.wireLog": "false",
+		// Optional. Server status polling: fast early polls, then exponential backoff with jitter up to a cap.
+		"openstack.polling.fastIntervalMillis" : "2000",
+		"openstack.polling.fastPolls" : "5",
+		"openstack.polling.maxIntervalMillis" : "15000",
+		"openstack.polling.backoffMultiplier" : "1.5",
+		"openstack.polling.jitter" : "0.2",
+		// Optional. Floating IPs kept allocated ahead of demand. A high watermark of 0 disables the pool.
+		"openstack.floatingIpPool.lowWatermark" : "0",
+		"openstack.floatingIpPool.highWatermark" : "0",
+		// Optional. Also pool unassigned IPs the tenant already owns. Teardown leaves them allocated.
+		"openstack.floatingIpPool.adoptUnassigned" : "false",
+		// Optional. Pooled keep-alive HTTP connections, shared by all drivers of the same endpoint and settings.
+		"openstack.http.maxConnectionsPerRoute" : "20",
+		"openstack.http.maxTotalConnections" : "100",
+		"openstack.http.connectTimeoutMillis" : "10000",
+		"openstack.http.readTimeoutMillis" : "120000",
+		"openstack.http.idleTimeoutMillis" : "60000",
+		// Optional. Per endpoint request rate limit, and how long requests are suspended after a cloud failure.
+		"openstack.governor.requestsPerSecond" : "10",
+		"openstack.governor.burst" : "20",
+		"openstack.governor.openMillis" : "30000",
+		// Optional. Retries of single cloud calls that failed for a transient reason.
+		"openstack.retry.maxAttempts" : "5",
+		"openstack.retry.initialDelayMillis" : "1000",
+		"openstack.retry.maxDelayMillis" : "15000",
+		"openstack.retry.maxElapsedMillis" : "60000"
 
 	])
 }
@@ -0,0 +1,498 @@
+package org.cloudifysource.esc.driver.provisioning.openstack.essex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for Keystone and the Essex compute API, answering just enough of /v2.0/tokens,
+ * /servers and /os-floating-ips for the driver to provision and terminate servers.
+ * Servers stay in BUILD for a short while after they are first fetched by id, then turn ACTIVE.
+ * Floating IPs are loopback addresses, and the server also answers the readiness probe on /ready,
+ * so every address it hands out reaches it.
+ *
+ * Requests that a correct driver would never send, such as attaching an IP that is already attached
+ * to another server, are recorded as errors instead of being refused.
+ */
+public class FakeNovaServer {
+
+	static final String TENANT = "tenant";
+	static final String READY_PATH = "/ready";
+
+	private static final String IDENTITY_PATH = "/identity";
+	private static final String COMPUTE_PATH = "/v2/" + TENANT;
+	private static final long BOOT_MILLIS = 300;
+	private static final int HTTP_THREADS = 32;
+	private static final int BACKLOG = 512;
+
+	private static final Pattern NAME = Pattern.compile("\"name\"\\s*:\\s*\"([^\"]*)\"");
+	private static final Pattern ADDRESS = Pattern.compile("\"address\"\\s*:\\s*\"([^\"]*)\"");
+	private static final Pattern SERVER_PATH = Pattern.compile(COMPUTE_PATH + "/servers/(\\d+)(/action)?");
+	private static final Pattern FLOATING_IP_PATH = Pattern.compile(COMPUTE_PATH + "/os-floating-ips/(\\d+)");
+
+	private final HttpServer httpServer;
+	private final ExecutorService executor;
+	// guarded by this
+	private final Map<String, Server> servers = new LinkedHashMap<String, Server>();
+	private final Map<String, FloatingIp> floatingIps = new LinkedHashMap<String, FloatingIp>();
+	private final List<String> errors = new ArrayList<String>();
+	private int nextServerId = 1;
+	private int nextFloatingIpId = 1;
+	private int createdServers;
+
+	/**
+	 * Starts the server on an ephemeral port of all local addresses.
+	 *
+	 * @throws IOException if the port could not be bound.
+	 */
+	public FakeNovaServer()
+			throws IOException {
+		httpServer = HttpServer.create(new InetSocketAddress(0), BACKLOG);
+		executor = Executors.newFixedThreadPool(HTTP_THREADS);
+		httpServer.setExecutor(executor);
+		httpServer.createContext("/", new HttpHandler() {
+			public void handle(final HttpExchange exchange)
+					throws IOException {
+				try {
+					dispatch(exchange);
+				} catch (final RuntimeException e) {
+					error("Failed to handle " + exchange.getRequestMethod() + " " + exchange.getRequestURI() + ": " + e);
+					respond(exchange, 500, "text/plain", e.toString());
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		httpServer.start();
+	}
+
+	public void stop() {
+		httpServer.stop(0);
+		executor.shutdownNow();
+	}
+
+	public int getPort() {
+		return httpServer.getAddress().getPort();
+	}
+
+	public String getIdentityEndpoint() {
+		return "http://127.0.0.1:" + getPort() + IDENTITY_PATH;
+	}
+
+	public String getComputeEndpoint() {
+		return "http://127.0.0.1:" + getPort() + COMPUTE_PATH;
+	}
+
+	/**
+	 * @return the requests a correct driver would not have sent.
+	 */
+	public synchronized List<String> getErrors() {
+		return new ArrayList<String>(errors);
+	}
+
+	/**
+	 * @return the number of servers ever created.
+	 */
+	public synchronized int getCreatedServerCount() {
+		return createdServers;
+	}
+
+	/**
+	 * @return the ids of the servers that are not deleted.
+	 */
+	public synchronized List<String> getLiveServerIds() {
+		final List<String> ids = new ArrayList<String>();
+		for (final Server server : servers.values()) {
+			if (!server.deleted) {
+				ids.add(server.id);
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * @param serverId a server.
+	 * @return the floating IP attached to the server, or null.
+	 */
+	public synchronized String getFloatingIp(final String serverId) {
+		final Server server = servers.get(serverId);
+		return server == null ? null : server.floatingIp;
+	}
+
+	/**
+	 * @return the number of allocated floating IPs.
+	 */
+	public synchronized int getFloatingIpCount() {
+		return floatingIps.size();
+	}
+
+	private void dispatch(final HttpExchange exchange)
+			throws IOException {
+		final String method = exchange.getRequestMethod();
+		final String path = exchange.getRequestURI().getPath();
+		final String body = readBody(exchange);
+
+		if (READY_PATH.equals(path)) {
+			respond(exchange, 200, "text/plain", "");
+		} else if ("POST".equals(method) && (IDENTITY_PATH + "/v2.0/tokens").equals(path)) {
+			respond(exchange, 200, "application/xml", tokenXml());
+		} else if ("POST".equals(method) && (COMPUTE_PATH + "/servers").equals(path)) {
+			respond(exchange, 202, "application/xml", serverXml(createServer(body)));
+		} else if ("GET".equals(method) && (COMPUTE_PATH + "/servers/detail").equals(path)) {
+			respond(exchange, 200, "application/xml", listServers(parseQuery(exchange.getRequestURI().getRawQuery())));
+		} else if ("POST".equals(method) && (COMPUTE_PATH + "/os-floating-ips").equals(path)) {
+			respond(exchange, 200, "application/json", "{\"floating_ip\": " + floatingIpJson(allocateFloatingIp()) + "}");
+		} else if ("GET".equals(method) && (COMPUTE_PATH + "/os-floating-ips").equals(path)) {
+			respond(exchange, 200, "application/json", listFloatingIps());
+		} else {
+			final Matcher serverPath = SERVER_PATH.matcher(path);
+			final Matcher floatingIpPath = FLOATING_IP_PATH.matcher(path);
+			if (serverPath.matches()) {
+				final String id = serverPath.group(1);
+				if (serverPath.group(2) != null && "POST".equals(method)) {
+					respond(exchange, action(id, body) ? 202 : 404, "application/json", "");
+				} else if ("GET".equals(method)) {
+					final String xml = getServer(id);
+					respond(exchange, xml == null ? 404 : 200, "application/xml", xml == null ? "" : xml);
+				} else if ("DELETE".equals(method)) {
+					respond(exchange, deleteServer(id) ? 204 : 404, "application/xml", null);
+				} else {
+					respond(exchange, 405, "text/plain", "");
+				}
+			} else if (floatingIpPath.matches() && "DELETE".equals(method)) {
+				respond(exchange, deleteFloatingIp(floatingIpPath.group(1)) ? 202 : 404, "application/json", "");
+			} else {
+				error("Unexpected request " + method + " " + exchange.getRequestURI());
+				respond(exchange, 404, "text/plain", "");
+			}
+		}
+	}
+
+	private synchronized Server createServer(final String body) {
+		final Matcher name = NAME.matcher(body);
+		final Server server = new Server(Integer.toString(nextServerId++), name.find() ? name.group(1) : null);
+		servers.put(server.id, server);
+		++createdServers;
+		return server;
+	}
+
+	private synchronized String getServer(final String id) {
+		final Server server = servers.get(id);
+		if (server == null || server.deleted) {
+			return null;
+		}
+		if (server.activeAt == 0) {
+			// boots once the driver has seen it in BUILD
+			server.activeAt = System.currentTimeMillis() + BOOT_MILLIS;
+		}
+		return serverXml(server);
+	}
+
+	private synchronized String listServers(final Map<String, String> query) {
+		final long changesSince = query.containsKey("changes-since") ? parseTime(query.get("changes-since")) : -1;
+		final Pattern name = query.containsKey("name") ? Pattern.compile(query.get("name")) : null;
+		final int limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : Integer.MAX_VALUE;
+		final String marker = query.get("marker");
+
+		final StringBuilder xml = new StringBuilder(
+				"<?xml version=\"1.0\" encoding=\"UTF-8\"?><servers xmlns=\"http://docs.openstack.org/compute/api/v1.1\""
+						+ " xmlns:atom=\"http://www.w3.org/2005/Atom\">");
+		boolean pastMarker = marker == null;
+		int listed = 0;
+		for (final Server server : servers.values()) {
+			if (!pastMarker) {
+				pastMarker = server.id.equals(marker);
+				continue;
+			}
+			if (listed >= limit) {
+				break;
+			}
+			server.refresh();
+			// deleted servers are only reported to changes-since listings
+			if (changesSince >= 0 ? server.updated < changesSince : server.deleted) {
+				continue;
+			}
+			if (name != null && (server.name == null || !name.matcher(server.name).find())) {
+				continue;
+			}
+			xml.append(serverElement(server));
+			++listed;
+		}
+		return xml.append("</servers>").toString();
+	}
+
+	private synchronized boolean action(final String id, final String body) {
+		final Server server = servers.get(id);
+		if (server == null || server.deleted) {
+			error("Action on missing server " + id + ": " + body);
+			return false;
+		}
+		final Matcher address = ADDRESS.matcher(body);
+		final String ip = address.find() ? address.group(1) : null;
+		final FloatingIp floatingIp = ip == null ? null : findFloatingIp(ip);
+		if (body.contains("addFloatingIp")) {
+			server.refresh();
+			if (!"ACTIVE".equals(server.status())) {
+				error("Floating IP " + ip + " attached to server " + id + " in status " + server.status());
+			}
+			if (floatingIp == null) {
+				error("Unallocated floating IP " + ip + " attached to server " + id);
+				return false;
+			}
+			if (floatingIp.serverId != null && !floatingIp.serverId.equals(id)) {
+				error("Floating IP " + ip + " attached to server " + id + " but already attached to "
+						+ floatingIp.serverId);
+			}
+			if (server.floatingIp != null && !server.floatingIp.equals(ip)) {
+				error("Server " + id + " got floating IP " + ip + " but already has " + server.floatingIp);
+			}
+			floatingIp.serverId = id;
+			server.floatingIp = ip;
+		} else if (body.contains("removeFloatingIp")) {
+			if (floatingIp == null || !id.equals(floatingIp.serverId)) {
+				error("Floating IP " + ip + " detached from server " + id + " it is not attached to");
+				return false;
+			}
+			floatingIp.serverId = null;
+			server.floatingIp = null;
+		} else {
+			error("Unexpected action on server " + id + ": " + body);
+			return false;
+		}
+		server.updated = System.currentTimeMillis();
+		return true;
+	}
+
+	private synchronized boolean deleteServer(final String id) {
+		final Server server = servers.get(id);
+		if (server == null || server.deleted) {
+			return false;
+		}
+		if (server.floatingIp != null) {
+			findFloatingIp(server.floatingIp).serverId = null;
+			server.floatingIp = null;
+		}
+		server.deleted = true;
+		server.updated = System.currentTimeMillis();
+		return true;
+	}
+
+	private synchronized FloatingIp allocateFloatingIp() {
+		final int id = nextFloatingIpId++;
+		final FloatingIp floatingIp = new FloatingIp(Integer.toString(id),
+				"127.1." + (id / 200) + "." + (id % 200 + 10));
+		floatingIps.put(floatingIp.id, floatingIp);
+		return floatingIp;
+	}
+
+	private synchronized String listFloatingIps() {
+		final StringBuilder json = new StringBuilder("{\"floating_ips\": [");
+		String separator = "";
+		for (final FloatingIp floatingIp : floatingIps.values()) {
+			json.append(separator).append(floatingIpJson(floatingIp));
+			separator = ", ";
+		}
+		return json.append("]}").toString();
+	}
+
+	private synchronized boolean deleteFloatingIp(final String id) {
+		final FloatingIp floatingIp = floatingIps.remove(id);
+		if (floatingIp == null) {
+			return false;
+		}
+		if (floatingIp.serverId != null) {
+			error("Floating IP " + floatingIp.ip + " deleted while attached to server " + floatingIp.serverId);
+		}
+		return true;
+	}
+
+	private FloatingIp findFloatingIp(final String ip) {
+		for (final FloatingIp floatingIp : floatingIps.values()) {
+			if (floatingIp.ip.equals(ip)) {
+				return floatingIp;
+			}
+		}
+		return null;
+	}
+
+	private synchronized void error(final String error) {
+		errors.add(error);
+	}
+
+	private String tokenXml() {
+		return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+				+ "<access xmlns=\"http://docs.openstack.org/identity/api/v2.0\">"
+				+ "<token id=\"fake-token\" expires=\"" + formatTime(System.currentTimeMillis() + 60 * 60 * 1000)
+				+ "\"><tenant id=\"1\" name=\"" + TENANT + "\"/></token>"
+				+ "<serviceCatalog><service type=\"compute\" name=\"Compute Service\">"
+				+ "<endpoint region=\"RegionOne\" publicURL=\"" + getComputeEndpoint() + "\"/>"
+				+ "</service></serviceCatalog></access>";
+	}
+
+	private String serverXml(final Server server) {
+		synchronized (this) {
+			server.refresh();
+			return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + serverElement(server)
+					.replaceFirst("<server ", "<server xmlns=\"http://docs.openstack.org/compute/api/v1.1\""
+							+ " xmlns:atom=\"http://www.w3.org/2005/Atom\" ");
+		}
+	}
+
+	private String serverElement(final Server server) {
+		final StringBuilder xml = new StringBuilder();
+		xml.append("<server id=\"").append(server.id).append("\" name=\"").append(server.name)
+				.append("\" status=\"").append(server.status()).append("\" updated=\"")
+				.append(formatTime(server.updated)).append("\">");
+		xml.append("<image id=\"1\"><atom:link rel=\"self\" href=\"").append(getComputeEndpoint())
+				.append("/images/1\"/></image>");
+		xml.append("<addresses><network id=\"private\">");
+		if ("ACTIVE".equals(server.status())) {
+			xml.append("<ip version=\"4\" addr=\"").append(server.privateIp).append("\"/>");
+			if (server.floatingIp != null) {
+				xml.append("<ip version=\"4\" addr=\"").append(server.floatingIp).append("\"/>");
+			}
+		}
+		xml.append("</network></addresses>");
+		xml.append("<atom:link rel=\"self\" href=\"").append(getComputeEndpoint()).append("/servers/")
+				.append(server.id).append("\"/>");
+		return xml.append("</server>").toString();
+	}
+
+	private static String floatingIpJson(final FloatingIp floatingIp) {
+		return "{\"id\": " + floatingIp.id + ", \"ip\": \"" + floatingIp.ip + "\", \"fixed_ip\": null, "
+				+ "\"instance_id\": " + (floatingIp.serverId == null ? "null" : floatingIp.serverId) + "}";
+	}
+
+	private static String readBody(final HttpExchange exchange)
+			throws IOException {
+		final InputStream in = exchange.getRequestBody();
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[1024];
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			body.write(buffer, 0, read);
+		}
+		return body.toString("UTF-8");
+	}
+
+	private static void respond(final HttpExchange exchange, final int status, final String contentType,
+			final String body)
+			throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		if (body == null || body.length() == 0) {
+			exchange.sendResponseHeaders(status, -1);
+			return;
+		}
+		final byte[] bytes = body.getBytes("UTF-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		final OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	private static Map<String, String> parseQuery(final String rawQuery)
+			throws UnsupportedEncodingException {
+		if (rawQuery == null) {
+			return Collections.emptyMap();
+		}
+		final Map<String, String> query = new HashMap<String, String>();
+		for (final String parameter : rawQuery.split("&")) {
+			final int equals = parameter.indexOf('=');
+			if (equals > 0) {
+				query.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"),
+						URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+			}
+		}
+		return query;
+	}
+
+	private static SimpleDateFormat timeFormat() {
+		final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format;
+	}
+
+	private static String formatTime(final long time) {
+		return timeFormat().format(new Date(time));
+	}
+
+	private static long parseTime(final String time) {
+		try {
+			return timeFormat().parse(time).getTime();
+		} catch (final ParseException e) {
+			throw new IllegalArgumentException("Bad time " + time, e);
+		}
+	}
+
+	/**
+	 * A server of the tenant. Guarded by the fake server.
+	 */
+	private static class Server {
+
+		private final String id;
+		private final String name;
+		private final String privateIp;
+		private long activeAt;
+		private boolean active;
+		private boolean deleted;
+		private long updated;
+		private String floatingIp;
+
+		Server(final String id, final String name) {
+			this.id = id;
+			this.name = name;
+			final int number = Integer.parseInt(id);
+			this.privateIp = "10.0." + (number / 200) + "." + (number % 200 + 10);
+			this.updated = System.currentTimeMillis();
+		}
+
+		void refresh() {
+			final long now = System.currentTimeMillis();
+			if (!active && !deleted && activeAt > 0 && now >= activeAt) {
+				active = true;
+				updated = now;
+			}
+		}
+
+		String status() {
+			return deleted ? "DELETED" : active ? "ACTIVE" : "BUILD";
+		}
+	}
+
+	/**
+	 * A floating IP of the tenant. Guarded by the fake server.
+	 */
+	private static class FloatingIp {
+
+		private final String id;
+		private final String ip;
+		private String serverId;
+
+		FloatingIp(final String id, final String ip) {
+			this.id = id;
+			this.ip = ip;
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package org.cloudifysource.esc.driver.provisioning.openstack.essex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.cloudifysource.dsl.cloud.Cloud;
+import org.cloudifysource.dsl.cloud.CloudProvider;
+import org.cloudifysource.dsl.cloud.CloudTemplate;
+import org.cloudifysource.esc.driver.provisioning.MachineDetails;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Provisions and terminates hundreds of servers in parallel against a {@link FakeNovaServer}, checking
+ * that concurrent calls on one driver never mix up servers or floating IPs.
+ * Takes minutes, so it is left out of the default build. Run it with {@code mvn test -Pstress}.
+ */
+public class OpenstackEssexDriverConcurrencyTest {
+
+	private static final int SERVERS = 300;
+	private static final int CALLER_THREADS = 100;
+	private static final long TIMEOUT_SECONDS = 120;
+	private static final String TEMPLATE = "SMALL_LINUX";
+
+	private FakeNovaServer nova;
+	private OpenstackEssexDriver driver;
+	private ExecutorService callers;
+
+	@Before
+	public void setUp()
+			throws Exception {
+		nova = new FakeNovaServer();
+		driver = new OpenstackEssexDriver();
+		driver.setConfig(createCloud(), TEMPLATE, false);
+		callers = Executors.newFixedThreadPool(CALLER_THREADS);
+	}
+
+	@After
+	public void tearDown() {
+		if (callers != null) {
+			callers.shutdownNow();
+		}
+		if (driver != null) {
+			driver.close();
+		}
+		if (nova != null) {
+			nova.stop();
+		}
+	}
+
+	@Test
+	public void testParallelStartAndStop()
+			throws Exception {
+		final List<Future<MachineDetails>> starts = new ArrayList<Future<MachineDetails>>(SERVERS);
+		for (int i = 0; i < SERVERS; i++) {
+			starts.add(callers.submit(new Callable<MachineDetails>() {
+				public MachineDetails call()
+						throws Exception {
+					return driver.startMachine(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+				}
+			}));
+		}
+
+		final Set<String> machineIds = new HashSet<String>();
+		final Set<String> publicIps = new HashSet<String>();
+		final Set<String> privateIps = new HashSet<String>();
+		for (final Future<MachineDetails> start : starts) {
+			final MachineDetails machine = start.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			assertNotNull(machine.getPublicAddress());
+			assertTrue("Machine id handed out twice: " + machine.getMachineId(), machineIds.add(machine.getMachineId()));
+			assertTrue("Floating IP handed out twice: " + machine.getPublicAddress(),
+					publicIps.add(machine.getPublicAddress()));
+			assertTrue("Private IP handed out twice: " + machine.getPrivateAddress(),
+					privateIps.add(machine.getPrivateAddress()));
+			assertEquals("Floating IP of " + machine.getMachineId(), machine.getPublicAddress(),
+					nova.getFloatingIp(machine.getMachineId()));
+		}
+		assertEquals(nova.getErrors().toString(), 0, nova.getErrors().size());
+		assertEquals(SERVERS, nova.getCreatedServerCount());
+		assertEquals(SERVERS, nova.getLiveServerIds().size());
+		assertEquals(SERVERS, nova.getFloatingIpCount());
+
+		final List<Future<Boolean>> stops = new ArrayList<Future<Boolean>>(SERVERS);
+		for (final String ip : publicIps) {
+			stops.add(callers.submit(new Callable<Boolean>() {
+				public Boolean call()
+						throws Exception {
+					return driver.stopMachine(ip, TIMEOUT_SECONDS, TimeUnit.SECONDS);
+				}
+			}));
+		}
+		for (final Future<Boolean> stop : stops) {
+			assertTrue(stop.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		}
+		assertEquals(nova.getErrors().toString(), 0, nova.getErrors().size());
+		assertEquals(nova.getLiveServerIds().toString(), 0, nova.getLiveServerIds().size());
+		assertEquals(0, nova.getFloatingIpCount());
+	}
+
+	private Cloud createCloud() {
+		final CloudProvider provider = new CloudProvider();
+		provider.setMachineNamePrefix("stress-agent-");
+		provider.setManagementGroup("stress-management-");
+
+		final Map<String, Object> options = new HashMap<String, Object>();
+		options.put("openstack.keyPair", "stress");
+		options.put("openstack.securityGroup", "default");
+		options.put("openstack.readiness.type", "http");
+		options.put("openstack.readiness.port", Integer.toString(nova.getPort()));
+		options.put("openstack.readiness.path", FakeNovaServer.READY_PATH);
+		options.put("openstack.readiness.connectTimeoutMillis", "2000");
+
+		final CloudTemplate template = new CloudTemplate();
+		template.setImageId("1");
+		template.setHardwareId("1");
+		template.setUsername("root");
+		template.setPassword("password");
+		template.setRemoteDirectory("/tmp/gs-files");
+		template.setOptions(options);
+		template.setCustom(new HashMap<String, Object>());
+
+		final Map<String, CloudTemplate> templates = new HashMap<String, CloudTemplate>();
+		templates.put(TEMPLATE, template);
+
+		final Map<String, Object> custom = new HashMap<String, Object>();
+		custom.put("openstack.identity.endpoint", nova.getIdentityEndpoint());
+		custom.put("openstack.endpoint", nova.getComputeEndpoint());
+		custom.put("openstack.tenant", FakeNovaServer.TENANT);
+		custom.put("openstack.username", "stress");
+		custom.put("openstack.password", "stress");
+		// poll and retry fast, and let every request through
+		custom.put("openstack.polling.fastIntervalMillis", "100");
+		custom.put("openstack.polling.fastPolls", "50");
+		custom.put("openstack.polling.maxIntervalMillis", "500");
+		custom.put("openstack.retry.initialDelayMillis", "100");
+		custom.put("openstack.governor.requestsPerSecond", "0");
+		custom.put("openstack.http.maxConnectionsPerRoute", "50");
+
+		final Cloud cloud = new Cloud();
+		cloud.setName("openstack-essex");
+		cloud.setProvider(provider);
+		cloud.setTemplates(templates);
+		cloud.setCustom(custom);
+		return cloud;
+	}
+}
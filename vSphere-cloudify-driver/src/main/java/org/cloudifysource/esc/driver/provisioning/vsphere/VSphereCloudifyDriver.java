@@ -76,11 +76,19 @@ public class VSphereCloudifyDriver extends CloudDriverSupport implements Provisi
 			throw new IllegalArgumentException("Custom field '" + VSPHERE_PASSWORD + "' must be set");
 		}
 		
+		// a driver configured again must not keep the pool, threads and session of its previous communicator
+		if (vsphereCommunicatorService != null) {
+			vsphereCommunicatorService.close();
+		}
 		try {
 			vsphereCommunicatorService = new VSphereCommunicatorServiceImpl(vsphereURL, vsphereUserName, vspherePassword);
 		} catch (CloudProvisioningException e) {
 			throw new RuntimeException(e);
-		}		
+		}
+		// start adopting and filling the pool now, so the first machine can already come from it
+		if (!this.management) {
+			vsphereCommunicatorService.configurePool(this.serverNamePrefix, this.cloud, this.template);
+		}
 	}
 
 	
@@ -189,7 +197,9 @@ public class VSphereCloudifyDriver extends CloudDriverSupport implements Provisi
 		
 		} catch (final Exception e) {
 			throw new CloudProvisioningException("Failed to shut down managememnt machines", e);
-		}		
+		}
+		// pooled VMs are powered off and named after the agents, nothing above matches them
+		vsphereCommunicatorService.destroyPooledVMs(this.cloud);
 	}
 
 	public String getCloudName() {
@@ -17,6 +17,10 @@ public interface VSphereCommunicatorService {
 
 	void terminateServers(String serverNamePrefix) throws CloudProvisioningException;
 
+	String configurePool(String serverNamePrefix, Cloud cloud, CloudTemplate serverTemplate);
+
+	void destroyPooledVMs(Cloud cloud) throws CloudProvisioningException;
+
 	void close();
 
 }
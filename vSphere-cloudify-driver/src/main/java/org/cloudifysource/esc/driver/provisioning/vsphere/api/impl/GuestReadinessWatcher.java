@@ -0,0 +1,248 @@
+package org.cloudifysource.esc.driver.provisioning.vsphere.api.impl;
+
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vmware.vim25.InvalidCollectorVersion;
+import com.vmware.vim25.ManagedEntityStatus;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.WaitOptions;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.PropertyFilter;
+import com.vmware.vim25.mo.VirtualMachine;
+
+/**
+ * Waits for the guests of new virtual machines to come up with a single thread blocked in
+ * PropertyCollector.waitForUpdatesEx, instead of polling the guest state and heartbeat of every VM.
+ * Each VM being waited for has a property filter on guest.guestState, guestHeartbeatStatus and
+ * guest.ipAddress, and its wait ends as soon as vCenter reports the guest running with a green heartbeat
+ * and an IP address.
+ * The watcher uses a property collector of its own, so its filters do not affect other retrievals.
+ *
+ */
+public class GuestReadinessWatcher {
+
+	private static final String VIRTUAL_MACHINE = "VirtualMachine";
+	private static final String GUEST_STATE = "guest.guestState";
+	private static final String HEARTBEAT_STATUS = "guestHeartbeatStatus";
+	private static final String GUEST_IP_ADDRESS = "guest.ipAddress";
+	private static final String RUNNING = "running";
+	// the wait is renewed at least this often, so a dropped connection is noticed
+	private static final int MAX_WAIT_SECONDS = 30;
+	private static final long RETRY_AFTER_FAILURE_MILLIS = 3000;
+
+	private static final Logger logger = Logger.getLogger(GuestReadinessWatcher.class.getName());
+
+	private final PropertyCollector propertyCollector;
+	// by the value of their property filter
+	private final Map<String, Watch> watches = new HashMap<String, Watch>();
+	private Thread watcherThread;
+	private volatile boolean closed;
+
+	/**
+	 * @param sharedCollector the property collector of the service instance, used to create the
+	 *        watcher's own collector.
+	 * @throws RemoteException if the property collector could not be created.
+	 */
+	public GuestReadinessWatcher(PropertyCollector sharedCollector) throws RemoteException {
+		this.propertyCollector = sharedCollector.createPropertyCollector();
+	}
+
+	/**
+	 * Waits until the guest of a VM is running with a green heartbeat and has an IP address.
+	 *
+	 * @param virtualMachine the VM.
+	 * @param duration the time to wait.
+	 * @param unit the unit of the duration.
+	 * @return the guest IP address, or null if the guest was not ready in time.
+	 * @throws InterruptedException if interrupted while waiting.
+	 * @throws RemoteException if the VM could not be watched.
+	 */
+	public String waitForGuest(VirtualMachine virtualMachine, long duration, TimeUnit unit)
+			throws InterruptedException, RemoteException {
+		Watch watch = new Watch();
+		PropertyFilter filter;
+		synchronized (this) {
+			if (closed) {
+				throw new IllegalStateException("Guest readiness watcher is closed");
+			}
+			// registered before the watcher thread can see the first update of the filter
+			filter = propertyCollector.createFilter(createFilterSpec(virtualMachine), true);
+			watches.put(filter.getMOR().get_value(), watch);
+			startWatcherThread();
+		}
+		try {
+			if (!watch.ready.await(duration, unit)) {
+				logger.log(Level.WARNING, "Guest of " + virtualMachine.getName() + " was not ready in time. Guest state: "
+						+ watch.guestState + ", heartbeat: " + watch.heartbeatStatus);
+				return null;
+			}
+			return watch.ipAddress;
+		} finally {
+			synchronized (this) {
+				watches.remove(filter.getMOR().get_value());
+			}
+			destroy(filter);
+		}
+	}
+
+	/**
+	 * Stops the watcher thread and destroys the watcher's property collector.
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			propertyCollector.cancelWaitForUpdates();
+		} catch (Exception e) {
+			logger.log(Level.FINE, "Failed to cancel the wait for guest updates", e);
+		}
+		try {
+			propertyCollector.destroyPropertyCollector();
+		} catch (Exception e) {
+			logger.log(Level.FINE, "Failed to destroy the guest readiness property collector", e);
+		}
+	}
+
+	private void startWatcherThread() {
+		if (watcherThread == null) {
+			watcherThread = new Thread(new Runnable() {
+				public void run() {
+					watchUpdates();
+				}
+			}, "vsphere-guest-readiness-watcher");
+			watcherThread.setDaemon(true);
+			watcherThread.start();
+		}
+		notifyAll();
+	}
+
+	private void watchUpdates() {
+		WaitOptions options = new WaitOptions();
+		options.setMaxWaitSeconds(MAX_WAIT_SECONDS);
+		String version = "";
+		while (!closed) {
+			try {
+				synchronized (this) {
+					while (watches.isEmpty() && !closed) {
+						wait();
+					}
+				}
+				if (closed) {
+					return;
+				}
+				UpdateSet updates = propertyCollector.waitForUpdatesEx(version, options);
+				if (updates != null) {
+					version = updates.getVersion();
+					apply(updates);
+				}
+			} catch (InvalidCollectorVersion e) {
+				// start over, vCenter resends the current state of every filter
+				version = "";
+			} catch (InterruptedException e) {
+				return;
+			} catch (Exception e) {
+				if (closed) {
+					return;
+				}
+				logger.log(Level.WARNING, "Failed to wait for guest updates: " + e.getMessage(), e);
+				try {
+					Thread.sleep(RETRY_AFTER_FAILURE_MILLIS);
+				} catch (InterruptedException ie) {
+					return;
+				}
+			}
+		}
+	}
+
+	private void apply(UpdateSet updates) {
+		if (updates.getFilterSet() == null) {
+			return;
+		}
+		for (PropertyFilterUpdate filterUpdate : updates.getFilterSet()) {
+			Watch watch;
+			synchronized (this) {
+				watch = watches.get(filterUpdate.getFilter().get_value());
+			}
+			if (watch == null || filterUpdate.getObjectSet() == null) {
+				continue;
+			}
+			for (ObjectUpdate objectUpdate : filterUpdate.getObjectSet()) {
+				if (objectUpdate.getChangeSet() != null) {
+					for (PropertyChange change : objectUpdate.getChangeSet()) {
+						watch.apply(change);
+					}
+				}
+			}
+			watch.checkReady();
+		}
+	}
+
+	private static PropertyFilterSpec createFilterSpec(VirtualMachine virtualMachine) {
+		PropertySpec propertySpec = new PropertySpec();
+		propertySpec.setType(VIRTUAL_MACHINE);
+		propertySpec.setAll(Boolean.FALSE);
+		propertySpec.setPathSet(new String[] { GUEST_STATE, HEARTBEAT_STATUS, GUEST_IP_ADDRESS });
+
+		ObjectSpec objectSpec = new ObjectSpec();
+		objectSpec.setObj(virtualMachine.getMOR());
+		objectSpec.setSkip(Boolean.FALSE);
+
+		PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+		filterSpec.setPropSet(new PropertySpec[] { propertySpec });
+		filterSpec.setObjectSet(new ObjectSpec[] { objectSpec });
+		return filterSpec;
+	}
+
+	private static void destroy(PropertyFilter filter) {
+		try {
+			filter.destroyPropertyFilter();
+		} catch (Exception e) {
+			logger.log(Level.FINE, "Failed to destroy guest property filter", e);
+		}
+	}
+
+	/**
+	 * The guest properties of a VM being waited for. Only updated by the watcher thread.
+	 */
+	private static class Watch {
+
+		private final CountDownLatch ready = new CountDownLatch(1);
+		private volatile String guestState;
+		private volatile ManagedEntityStatus heartbeatStatus;
+		private volatile String ipAddress;
+
+		void apply(PropertyChange change) {
+			boolean removed = change.getOp() == PropertyChangeOp.remove
+					|| change.getOp() == PropertyChangeOp.indirectRemove;
+			Object value = removed ? null : change.getVal();
+			if (GUEST_STATE.equals(change.getName())) {
+				guestState = (String) value;
+			} else if (HEARTBEAT_STATUS.equals(change.getName())) {
+				heartbeatStatus = (ManagedEntityStatus) value;
+			} else if (GUEST_IP_ADDRESS.equals(change.getName())) {
+				ipAddress = (String) value;
+			}
+		}
+
+		void checkReady() {
+			if (RUNNING.equals(guestState) && heartbeatStatus == ManagedEntityStatus.green && ipAddress != null) {
+				ready.countDown();
+			}
+		}
+	}
+}
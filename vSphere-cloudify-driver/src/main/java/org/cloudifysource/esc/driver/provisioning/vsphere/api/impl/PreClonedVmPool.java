@@ -0,0 +1,326 @@
+package org.cloudifysource.esc.driver.provisioning.vsphere.api.impl;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vmware.vim25.ManagedObjectReference;
+
+/**
+ * Keeps pools of VMs that are already cloned and powered off, so a new machine only needs to be
+ * powered on and wait for its guest. When a pool drops below its low watermark it is refilled up to its
+ * high watermark by background clones. Pooled VMs are tagged by the {@link VmSource}, so a restarted
+ * driver adopts the VMs its predecessor left in the pool instead of cloning new ones. Pools are only
+ * emptied by {@link #drain(String)}, when the cloud is torn down.
+ *
+ * Keeps hit and miss counts of {@link #take(String)}.
+ *
+ */
+public class PreClonedVmPool {
+
+	/**
+	 * Clones and finds the VMs of the pools.
+	 */
+	public interface VmSource {
+
+		/**
+		 * @param poolName the pool.
+		 * @return the powered off VMs tagged as members of the pool.
+		 * @throws Exception if the VMs could not be listed.
+		 */
+		List<ManagedObjectReference> findPoolMembers(String poolName) throws Exception;
+
+		/**
+		 * Clones a powered off VM for a pool, tagged as a pool member.
+		 *
+		 * @param poolName the pool.
+		 * @return the new VM.
+		 * @throws Exception if the VM could not be cloned.
+		 */
+		ManagedObjectReference cloneForPool(String poolName) throws Exception;
+
+		/**
+		 * Destroys a VM cloned for a pool that was drained while it was being cloned.
+		 *
+		 * @param vm the VM.
+		 * @throws Exception if the VM could not be destroyed.
+		 */
+		void destroy(ManagedObjectReference vm) throws Exception;
+	}
+
+	private static final int REFILL_THREADS = 2;
+	private static final long REFILL_INTERVAL_MILLIS = 60 * 1000;
+	// after a failed clone, wait before trying again so a broken template does not hammer vCenter
+	private static final long FAILED_CLONE_BACKOFF_MILLIS = 30 * 1000;
+
+	private static final Logger logger = Logger.getLogger(PreClonedVmPool.class.getName());
+
+	private final VmSource source;
+	private final ScheduledExecutorService refiller;
+	// guarded by this
+	private final Map<String, Pool> pools = new HashMap<String, Pool>();
+	private boolean closed;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public PreClonedVmPool(VmSource source) {
+		this.source = source;
+		this.refiller = Executors.newScheduledThreadPool(REFILL_THREADS, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "vsphere-vm-pool-refill");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		refiller.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				refillAll();
+			}
+		}, REFILL_INTERVAL_MILLIS, REFILL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sets the watermarks of a pool. The first call for a pool adopts its tagged VMs
+	 * and then starts filling the pool.
+	 *
+	 * @param poolName the pool.
+	 * @param lowWatermark the pool is refilled when it has fewer VMs than this.
+	 * @param highWatermark the number of VMs a refill brings the pool to.
+	 */
+	public void configure(final String poolName, int lowWatermark, int highWatermark) {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			Pool pool = pools.get(poolName);
+			if (pool != null) {
+				pool.lowWatermark = lowWatermark;
+				pool.highWatermark = Math.max(lowWatermark, highWatermark);
+				return;
+			}
+			pool = new Pool(poolName, lowWatermark, Math.max(lowWatermark, highWatermark));
+			pools.put(poolName, pool);
+		}
+		refiller.execute(new Runnable() {
+			public void run() {
+				adopt(poolName);
+			}
+		});
+	}
+
+	/**
+	 * Takes a VM from a pool, and starts a refill if the pool drops below its low watermark.
+	 *
+	 * @param poolName the pool.
+	 * @return a powered off VM, or null if the pool is empty.
+	 */
+	public ManagedObjectReference take(String poolName) {
+		ManagedObjectReference vm;
+		Pool pool;
+		synchronized (this) {
+			pool = pools.get(poolName);
+			vm = pool == null ? null : pool.available.poll();
+		}
+		if (vm == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		if (pool != null) {
+			refill(pool);
+		}
+		return vm;
+	}
+
+	/**
+	 * Forgets a pool and stops refilling it. VMs that are being cloned for it are destroyed once they are
+	 * cloned; the VMs already in the pool are left to the caller, which finds them by their tag.
+	 *
+	 * @param poolName the pool.
+	 */
+	public void drain(String poolName) {
+		synchronized (this) {
+			Pool pool = pools.remove(poolName);
+			if (pool == null) {
+				return;
+			}
+			pool.drained = true;
+			pool.available.clear();
+		}
+		logger.info("Drained pool " + poolName);
+	}
+
+	/**
+	 * Stops refilling. Pooled VMs are left in place, tagged, for the next driver to adopt.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		refiller.shutdownNow();
+		logger.info("Closed pre-cloned VM pool. " + getStats());
+	}
+
+	/**
+	 * Counts a VM returned by {@link #take(String)} that could not be claimed or started as a miss
+	 * instead of a hit, since the caller clones a new VM in its place.
+	 */
+	public void recordFailedClaim() {
+		hits.decrementAndGet();
+		misses.incrementAndGet();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of pooled VMs of a pool.
+	 */
+	public synchronized int size(String poolName) {
+		Pool pool = pools.get(poolName);
+		return pool == null ? 0 : pool.available.size();
+	}
+
+	/**
+	 * @return a one line summary of the pool statistics.
+	 */
+	public String getStats() {
+		StringBuilder sizes = new StringBuilder();
+		synchronized (this) {
+			for (Pool pool : pools.values()) {
+				sizes.append(", ").append(pool.poolName).append("=").append(pool.available.size());
+			}
+		}
+		return "Pre-cloned VM pool: hits=" + getHits() + ", misses=" + getMisses() + sizes;
+	}
+
+	private void adopt(String poolName) {
+		List<ManagedObjectReference> members = null;
+		try {
+			members = source.findPoolMembers(poolName);
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Failed to look for pooled VMs of pool " + poolName + ": " + e.getMessage(), e);
+		}
+		Pool pool;
+		synchronized (this) {
+			pool = pools.get(poolName);
+			if (pool == null) {
+				// drained before it was adopted
+				return;
+			}
+			if (members != null) {
+				pool.available.addAll(members);
+			}
+			pool.adopted = true;
+		}
+		if (members != null && !members.isEmpty()) {
+			logger.info("Adopted " + members.size() + " pooled VMs of pool " + poolName);
+		}
+		refill(pool);
+	}
+
+	private void refillAll() {
+		List<Pool> toRefill;
+		synchronized (this) {
+			toRefill = new LinkedList<Pool>(pools.values());
+		}
+		for (Pool pool : toRefill) {
+			refill(pool);
+		}
+	}
+
+	private void refill(final Pool pool) {
+		int toClone;
+		synchronized (this) {
+			if (closed || pool.drained || !pool.adopted || System.currentTimeMillis() < pool.retryAfter
+					|| pool.available.size() + pool.cloning >= pool.lowWatermark) {
+				return;
+			}
+			toClone = pool.highWatermark - pool.available.size() - pool.cloning;
+			pool.cloning += toClone;
+		}
+		logger.fine("Refilling pool " + pool.poolName + " with " + toClone + " VMs");
+		for (int i = 0; i < toClone; i++) {
+			refiller.execute(new Runnable() {
+				public void run() {
+					cloneOne(pool);
+				}
+			});
+		}
+	}
+
+	private void cloneOne(Pool pool) {
+		ManagedObjectReference vm = null;
+		boolean skip;
+		synchronized (this) {
+			skip = closed || pool.drained || System.currentTimeMillis() < pool.retryAfter;
+		}
+		if (!skip) {
+			try {
+				vm = source.cloneForPool(pool.poolName);
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "Failed to clone a VM for pool " + pool.poolName + ": "
+						+ e.getMessage(), e);
+				synchronized (this) {
+					pool.retryAfter = System.currentTimeMillis() + FAILED_CLONE_BACKOFF_MILLIS;
+				}
+			}
+		}
+		boolean orphaned = false;
+		synchronized (this) {
+			pool.cloning--;
+			if (vm != null) {
+				if (pool.drained) {
+					orphaned = true;
+				} else {
+					pool.available.add(vm);
+				}
+			}
+		}
+		if (orphaned) {
+			try {
+				source.destroy(vm);
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "Failed to destroy VM " + vm.get_value() + " cloned for drained pool "
+						+ pool.poolName + ". It may be leaking.", e);
+			}
+		}
+	}
+
+	/**
+	 * The pooled VMs of one pool.
+	 */
+	private static class Pool {
+
+		private final String poolName;
+		private final LinkedList<ManagedObjectReference> available = new LinkedList<ManagedObjectReference>();
+		private int lowWatermark;
+		private int highWatermark;
+		private int cloning;
+		private boolean adopted;
+		private boolean drained;
+		private long retryAfter;
+
+		Pool(String poolName, int lowWatermark, int highWatermark) {
+			this.poolName = poolName;
+			this.lowWatermark = lowWatermark;
+			this.highWatermark = highWatermark;
+		}
+	}
+}
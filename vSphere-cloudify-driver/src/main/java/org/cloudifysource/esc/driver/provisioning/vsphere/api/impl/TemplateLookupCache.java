@@ -0,0 +1,126 @@
+package org.cloudifysource.esc.driver.provisioning.vsphere.api.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.vmware.vim25.ManagedObjectNotFound;
+import com.vmware.vim25.ManagedObjectReference;
+
+/**
+ * Remembers where each template lives - the template itself, the folder its clones go to and the
+ * resource pool they are placed in - so cloning does not start with an inventory search and three more
+ * round trips every time. Entries expire after a while, and are dropped as soon as using one fails
+ * with ManagedObjectNotFound, for instance because the template was re-registered.
+ * The snapshots linked clones are made from are cached as well, until the template is invalidated.
+ *
+ */
+public class TemplateLookupCache {
+
+	/**
+	 * The managed objects a template is cloned from and into.
+	 */
+	public static class TemplateLocation {
+
+		private final ManagedObjectReference template;
+		private final ManagedObjectReference folder;
+		private final ManagedObjectReference resourcePool;
+		private final long expires;
+
+		TemplateLocation(ManagedObjectReference template, ManagedObjectReference folder,
+				ManagedObjectReference resourcePool, long expires) {
+			this.template = template;
+			this.folder = folder;
+			this.resourcePool = resourcePool;
+			this.expires = expires;
+		}
+
+		public ManagedObjectReference getTemplate() {
+			return template;
+		}
+
+		public ManagedObjectReference getFolder() {
+			return folder;
+		}
+
+		public ManagedObjectReference getResourcePool() {
+			return resourcePool;
+		}
+	}
+
+	private final long ttlMillis;
+	private final ConcurrentMap<String, TemplateLocation> locations = new ConcurrentHashMap<String, TemplateLocation>();
+	// by template name, then snapshot name
+	private final ConcurrentMap<String, ConcurrentMap<String, ManagedObjectReference>> snapshots =
+			new ConcurrentHashMap<String, ConcurrentMap<String, ManagedObjectReference>>();
+
+	/**
+	 * @param ttlMillis how long an entry is used before the template is looked up again.
+	 */
+	public TemplateLookupCache(long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * @param templateName the template name.
+	 * @return the cached location of the template, or null if it is not cached or has expired.
+	 */
+	public TemplateLocation get(String templateName) {
+		TemplateLocation location = locations.get(templateName);
+		if (location == null) {
+			return null;
+		}
+		if (System.currentTimeMillis() >= location.expires) {
+			locations.remove(templateName, location);
+			return null;
+		}
+		return location;
+	}
+
+	/**
+	 * Caches the location of a template.
+	 *
+	 * @return the cached location.
+	 */
+	public TemplateLocation put(String templateName, ManagedObjectReference template, ManagedObjectReference folder,
+			ManagedObjectReference resourcePool) {
+		TemplateLocation location = new TemplateLocation(template, folder, resourcePool,
+				System.currentTimeMillis() + ttlMillis);
+		locations.put(templateName, location);
+		return location;
+	}
+
+	/**
+	 * @return the cached snapshot of a template, or null if it is not cached.
+	 */
+	public ManagedObjectReference getSnapshot(String templateName, String snapshotName) {
+		ConcurrentMap<String, ManagedObjectReference> templateSnapshots = snapshots.get(templateName);
+		return templateSnapshots == null ? null : templateSnapshots.get(snapshotName);
+	}
+
+	public void putSnapshot(String templateName, String snapshotName, ManagedObjectReference snapshot) {
+		ConcurrentMap<String, ManagedObjectReference> templateSnapshots = snapshots.get(templateName);
+		if (templateSnapshots == null) {
+			snapshots.putIfAbsent(templateName, new ConcurrentHashMap<String, ManagedObjectReference>());
+			templateSnapshots = snapshots.get(templateName);
+		}
+		templateSnapshots.put(snapshotName, snapshot);
+	}
+
+	public void invalidate(String templateName) {
+		locations.remove(templateName);
+		snapshots.remove(templateName);
+	}
+
+	/**
+	 * @param e a failure of a call that used a cached location.
+	 * @return true if the failure was caused by a managed object that no longer exists.
+	 */
+	public static boolean isNotFound(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof ManagedObjectNotFound) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -2,10 +2,15 @@ package org.cloudifysource.esc.driver.provisioning.vsphere.api.impl;
 
 
 import java.net.URL;
+import java.rmi.RemoteException;
 
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -17,6 +22,8 @@ import org.cloudifysource.dsl.cloud.CloudTemplate;
 import org.cloudifysource.esc.driver.provisioning.CloudProvisioningException;
 import org.cloudifysource.esc.driver.provisioning.MachineDetails;
 import org.cloudifysource.esc.driver.provisioning.vsphere.api.VSphereCommunicatorService;
+import org.cloudifysource.esc.driver.provisioning.vsphere.api.impl.TemplateLookupCache.TemplateLocation;
+import org.cloudifysource.esc.driver.provisioning.vsphere.api.impl.VirtualMachineScanner.VirtualMachineSummary;
 
 import com.vmware.vim25.CustomizationAdapterMapping;
 import com.vmware.vim25.CustomizationDhcpIpGenerator;
@@ -25,12 +32,17 @@ import com.vmware.vim25.CustomizationIPSettings;
 import com.vmware.vim25.CustomizationLinuxPrep;
 import com.vmware.vim25.CustomizationPrefixName;
 import com.vmware.vim25.CustomizationSpec;
-import com.vmware.vim25.ManagedEntityStatus;
 import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.TaskInfo;
 import com.vmware.vim25.TaskInfoState;
 import com.vmware.vim25.VirtualMachineCloneSpec;
+import com.vmware.vim25.VirtualMachineConfigInfo;
 import com.vmware.vim25.VirtualMachineConfigSpec;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.VirtualMachineRelocateDiskMoveOptions;
 import com.vmware.vim25.VirtualMachineRelocateSpec;
+import com.vmware.vim25.VirtualMachineSnapshotInfo;
+import com.vmware.vim25.VirtualMachineSnapshotTree;
 import com.vmware.vim25.mo.ComputeResource;
 import com.vmware.vim25.mo.Folder;
 import com.vmware.vim25.mo.HostSystem;
@@ -46,15 +58,27 @@ public class VSphereCommunicatorServiceImpl implements
 
 	private static final String RESOURCE_POOL = "resourcePool";
 	private static final String VIRTUAL_MACHINE = "VirtualMachine";
+	private static final long TEMPLATE_CACHE_TTL = 10 * 60 * 1000; // 10 minutes
+	private static final String LINKED_CLONE = "vsphere.linkedClone";
+	private static final String LINKED_CLONE_SNAPSHOT = "vsphere.linkedClone.snapshot";
+	private static final String DEFAULT_LINKED_CLONE_SNAPSHOT = "cloudify-linked-clone-base";
 	private static final String GUEST_DOMAIN = "vsphere.guest.domain";
 	private static final String GUEST_TIME_ZONE = "vsphere.guest.time.zone";
-	private static final String RUNNING = "running";
-	private static final long GUEST_POLL_TIME = 3000;
+	private static final String POOL_LOW_WATERMARK = "vsphere.pool.lowWatermark";
+	private static final String POOL_HIGH_WATERMARK = "vsphere.pool.highWatermark";
+	// annotation of the powered off VMs waiting in a pool, followed by the pool name
+	private static final String POOL_TAG = "cloudify-vm-pool:";
 	private String url;
 	private String username;
 	private String password;
 	private ServiceInstance serviceInstance;
 	private Folder rootFolder;
+	private VirtualMachineScanner virtualMachineScanner;
+	private GuestReadinessWatcher guestReadinessWatcher;
+	private final TemplateLookupCache templateLookupCache = new TemplateLookupCache(TEMPLATE_CACHE_TTL);
+	private PreClonedVmPool preClonedVmPool;
+	// how the VMs of each pool are cloned, by pool name
+	private final ConcurrentMap<String, PoolCloneSpec> poolCloneSpecs = new ConcurrentHashMap<String, PoolCloneSpec>();
 	private  static final Logger logger = Logger.getLogger(VSphereCommunicatorServiceImpl.class.getName());
 	private static final long WAIT_UNTIL_FINISH = -1;
 
@@ -65,6 +89,19 @@ public class VSphereCommunicatorServiceImpl implements
 		try {
 			serviceInstance=new ServiceInstance(new URL(url),username,password,true);
 			rootFolder =serviceInstance.getRootFolder();
+			virtualMachineScanner = new VirtualMachineScanner(serviceInstance.getPropertyCollector(), rootFolder);
+			guestReadinessWatcher = new GuestReadinessWatcher(serviceInstance.getPropertyCollector());
+			preClonedVmPool = new PreClonedVmPool(new PreClonedVmPool.VmSource() {
+				public List<ManagedObjectReference> findPoolMembers(String poolName) throws Exception {
+					return findPooledVMs(poolName);
+				}
+				public ManagedObjectReference cloneForPool(String poolName) throws Exception {
+					return clonePooledVM(poolName);
+				}
+				public void destroy(ManagedObjectReference vm) throws Exception {
+					destroyVM(WAIT_UNTIL_FINISH, null, (VirtualMachine) MorUtil.createExactManagedEntity(serviceInstance.getServerConnection(), vm));
+				}
+			});
 		} catch (Exception e) {
 			throw new CloudProvisioningException("Cannot initialize vsphere service instance", e);
 		}
@@ -74,33 +111,194 @@ public class VSphereCommunicatorServiceImpl implements
 		if(logger.isLoggable(Level.INFO)){
 			logger.info("Creating new server from template .." +ToStringBuilder.reflectionToString(serverTemplate) +" and " +" serverNamePrefix " + serverNamePrefix + " and "+ vmName);
 		}
-		String vmTemplateName = serverTemplate.getImageId();
-		VirtualMachine virtualMachineTemplate = findVirtualMachine(vmTemplateName);
-		
-		VirtualMachine newVirtualMachine = cloneVMTemplate(virtualMachineTemplate,serverNamePrefix,vmName,cloud,serverTemplate);
-				
+		String poolName = configurePool(serverNamePrefix, cloud, serverTemplate);
+		if(poolName != null){
+			ManagedObjectReference pooledVM = preClonedVmPool.take(poolName);
+			if(pooledVM != null){
+				VirtualMachine startedVM = startPooledVM(pooledVM, poolName);
+				if(startedVM != null){
+					return createMachineDetails( duration,  timeout,startedVM,cloud,serverTemplate);
+				}
+				preClonedVmPool.recordFailedClaim();
+			}
+		}
+		VirtualMachine newVirtualMachine = cloneFromTemplate(serverNamePrefix,vmName,cloud,serverTemplate,true,null);
 		
 		return createMachineDetails( duration,  timeout,newVirtualMachine,cloud,serverTemplate);
 	}
+
+	/**
+	 * Clones a VM, looking the template up again if its cached location turns out to be stale.
+	 */
+	private VirtualMachine cloneFromTemplate(String serverNamePrefix,String vmName,Cloud cloud,CloudTemplate serverTemplate,
+			boolean powerOn,String annotation) throws CloudProvisioningException {
+		String vmTemplateName = serverTemplate.getImageId();
+		try {
+			return cloneVMTemplate(lookupTemplate(vmTemplateName),serverNamePrefix,vmName,cloud,serverTemplate,powerOn,annotation);
+		} catch (CloudProvisioningException e) {
+			if (!TemplateLookupCache.isNotFound(e)) {
+				throw e;
+			}
+			logger.log(Level.INFO, "Cached location of template " + vmTemplateName + " is stale, looking it up again");
+			templateLookupCache.invalidate(vmTemplateName);
+			return cloneVMTemplate(lookupTemplate(vmTemplateName),serverNamePrefix,vmName,cloud,serverTemplate,powerOn,annotation);
+		}
+	}
+
+	/**
+	 * Sets up the pool of pre-cloned VMs of a template, if it has a low watermark. The first call for a pool
+	 * adopts its tagged VMs and starts filling it in the background.
+	 * @return the pool name, or null if the template is not pooled.
+	 */
+	public String configurePool(String serverNamePrefix, Cloud cloud, CloudTemplate serverTemplate) {
+		int lowWatermark = getCustomInt(serverTemplate, POOL_LOW_WATERMARK, 0);
+		if(lowWatermark <= 0){
+			return null;
+		}
+		String poolName = getPoolName(serverNamePrefix, serverTemplate);
+		poolCloneSpecs.put(poolName, new PoolCloneSpec(serverNamePrefix, cloud, serverTemplate));
+		preClonedVmPool.configure(poolName, lowWatermark, getCustomInt(serverTemplate, POOL_HIGH_WATERMARK, lowWatermark));
+		return poolName;
+	}
+
+	/**
+	 * Drains the pools of all templates of the cloud, for both the agent and the management name prefixes,
+	 * and destroys the VMs tagged as their members. Pooled VMs are powered off and have no IP, so
+	 * stopping machines by IP or by the management prefix never finds them.
+	 */
+	public void destroyPooledVMs(Cloud cloud) throws CloudProvisioningException {
+		Set<String> poolTags = new HashSet<String>();
+		for(CloudTemplate eachTemplate:cloud.getTemplates().values()){
+			for(String serverNamePrefix:new String[] {cloud.getProvider().getMachineNamePrefix(), cloud.getProvider().getManagementGroup()}){
+				String poolName = getPoolName(serverNamePrefix, eachTemplate);
+				preClonedVmPool.drain(poolName);
+				poolTags.add(POOL_TAG + poolName);
+			}
+		}
+		try{
+			List<VirtualMachine> vmsToBeDestroyed= new ArrayList<VirtualMachine>();
+			for(VirtualMachineSummary eachVM:virtualMachineScanner.scan()){
+				if(poolTags.contains(eachVM.getAnnotation()) && eachVM.getPowerState() != VirtualMachinePowerState.poweredOn){
+					vmsToBeDestroyed.add(toVirtualMachine(eachVM));
+				}
+			}
+			logger.log(Level.INFO,"Destroying " + vmsToBeDestroyed.size() + " pooled VMs");
+			for(VirtualMachine eachVM:vmsToBeDestroyed){
+				destroyVM(WAIT_UNTIL_FINISH, null, eachVM);
+			}
+		}catch(CloudProvisioningException e){
+			throw e;
+		}catch(Exception e){
+			logger.log(Level.SEVERE,"Cannot destroy pooled VMs",e);
+			throw new CloudProvisioningException("Cannot destroy pooled VMs", e);
+		}
+	}
+
+	/**
+	 * VMs of a pool are cloned with the same template, memory and host name prefix, which the pool name is made of.
+	 */
+	private static String getPoolName(String serverNamePrefix, CloudTemplate serverTemplate) {
+		return serverTemplate.getImageId() + "/" + getHostNamePrefix(serverNamePrefix, serverTemplate) + "/"
+				+ serverTemplate.getMachineMemoryMB();
+	}
+
+	private static int getCustomInt(CloudTemplate serverTemplate, String key, int defaultValue) {
+		Object value = serverTemplate.getCustom().get(key);
+		if (value == null || StringUtils.isBlank(value.toString())) {
+			return defaultValue;
+		}
+		return Integer.parseInt(value.toString().trim());
+	}
+
+	private List<ManagedObjectReference> findPooledVMs(String poolName) throws RemoteException {
+		List<ManagedObjectReference> pooledVMs = new ArrayList<ManagedObjectReference>();
+		for(VirtualMachineSummary eachVM:virtualMachineScanner.scan()){
+			if(StringUtils.equals(eachVM.getAnnotation(), POOL_TAG + poolName)
+					&& eachVM.getPowerState() != VirtualMachinePowerState.poweredOn){
+				pooledVMs.add(eachVM.getMOR());
+			}
+		}
+		return pooledVMs;
+	}
+
+	/**
+	 * Clones a powered off VM, tagged with the pool name. The guest is customized when it is first powered on.
+	 */
+	private ManagedObjectReference clonePooledVM(String poolName) throws CloudProvisioningException {
+		PoolCloneSpec spec = poolCloneSpecs.get(poolName);
+		if(spec == null){
+			throw new CloudProvisioningException("No clone settings for pool " + poolName);
+		}
+		// foreground clones are named prefix + timestamp, pooled ones must never take one of those names
+		String vmName = getHostNamePrefix(spec.serverNamePrefix, spec.serverTemplate) + "pool-" + UUID.randomUUID();
+		return cloneFromTemplate(spec.serverNamePrefix,vmName,spec.cloud,spec.serverTemplate,false,POOL_TAG + poolName).getMOR();
+	}
+
+	/**
+	 * Claims a VM taken from a pool by clearing its tag, and powers it on. Other drivers may adopt the same
+	 * pooled VMs, so the tag is cleared only if the VM has not changed since it was read: vCenter rejects a
+	 * reconfiguration whose change version is not the current one.
+	 * @return the VM, or null if someone else claimed it, or if it could not be started, in which case it is destroyed.
+	 */
+	private VirtualMachine startPooledVM(ManagedObjectReference pooledVM, String poolName) {
+		VirtualMachine virtualMachine = (VirtualMachine) MorUtil.createExactManagedEntity(serviceInstance.getServerConnection(), pooledVM);
+		try {
+			VirtualMachineConfigInfo config = virtualMachine.getConfig();
+			if(config == null || !StringUtils.equals(config.getAnnotation(), POOL_TAG + poolName)){
+				logger.log(Level.INFO, "Pooled VM " + pooledVM.get_value() + " was already claimed, cloning a new one instead");
+				return null;
+			}
+			VirtualMachineConfigSpec untag = new VirtualMachineConfigSpec();
+			untag.setChangeVersion(config.getChangeVersion());
+			untag.setAnnotation("");
+			waitForSuccess(virtualMachine.reconfigVM_Task(untag), "untag pooled VM");
+		} catch (Exception e) {
+			logger.log(Level.INFO, "Cannot claim pooled VM " + pooledVM.get_value() + ", cloning a new one instead: " + e.getMessage());
+			return null;
+		}
+		try {
+			waitForSuccess(virtualMachine.powerOnVM_Task(null), "power on pooled VM");
+			return virtualMachine;
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Cannot start pooled VM " + pooledVM.get_value() + ", cloning a new one instead", e);
+			try {
+				destroyVM(WAIT_UNTIL_FINISH, null, virtualMachine);
+			} catch (Exception de) {
+				logger.log(Level.WARNING, "Cannot destroy pooled VM " + pooledVM.get_value(), de);
+			}
+			return null;
+		}
+	}
+
+	private static void waitForSuccess(Task task, String action) throws Exception {
+		task.waitForTask();
+		TaskInfo taskInfo = task.getTaskInfo();
+		if(taskInfo.state != TaskInfoState.success){
+			throw new CloudProvisioningException("Unable to " + action + " " + taskInfo.state,
+					taskInfo.getError() == null ? null : taskInfo.getError().getFault());
+		}
+	}
 	
 	private MachineDetails createMachineDetails(long duration, TimeUnit unit, VirtualMachine newVirtualMachine,Cloud cloud,CloudTemplate serverTemplate) throws CloudProvisioningException {
 		final MachineDetails md = new MachineDetails();
 		md.setAgentRunning(false);
 		md.setCloudifyInstalled(false);
 		md.setInstallationDirectory(null);
-		boolean nodeUp;
+		String guestIp;
 		try {
-			nodeUp = waitForVirtualMachineToBeUp(duration,unit,newVirtualMachine);
+			guestIp = guestReadinessWatcher.waitForGuest(newVirtualMachine, duration, unit);
 		} catch (InterruptedException e) {
 			throw new CloudProvisioningException("Virtual Machine launch wait timedout",e);
+		} catch (RemoteException e) {
+			throw new CloudProvisioningException("Cannot watch guest of new VM", e);
 		}
-		if(!nodeUp){
+		if(guestIp == null){
 			throw new CloudProvisioningException("Virtual Machine launch timedout");
  
 		}
 		md.setMachineId(newVirtualMachine.getConfig().name);
-		md.setPublicAddress(newVirtualMachine.getGuest().getIpAddress());
-		md.setPrivateAddress(newVirtualMachine.getGuest().getIpAddress());
+		md.setPublicAddress(guestIp);
+		md.setPrivateAddress(guestIp);
 
 
 
@@ -112,58 +310,54 @@ public class VSphereCommunicatorServiceImpl implements
 		
 		return md;
 	}
-	private boolean waitForVirtualMachineToBeUp(long duration, TimeUnit unit,VirtualMachine newVirtualMachine) throws InterruptedException {
-		final long end = System.currentTimeMillis() + unit.toMillis(duration);
-		while(System.currentTimeMillis() < end){
-			
-			String guestState = newVirtualMachine.getGuest().getGuestState();
-			if(guestState.equals(RUNNING) && newVirtualMachine.getGuestHeartbeatStatus() == ManagedEntityStatus.green){
-				if(logger.isLoggable(Level.INFO)){
-					logger.info("GuestInfo.." +ToStringBuilder.reflectionToString(newVirtualMachine.getGuest()));
-				}
-				return true;
-				
-			}
-			Thread.sleep(GUEST_POLL_TIME);
-		}
-		return false;
-	}
 	/**
      * TODO: Make method protected and move to an abstract class so this can 
 	 * be extended by use case needs of how any enduser would want to customize their
 	 * VM.
-	 * @param virtualMachineTemplate
+	 * @param templateLocation
 	 * @param serverNamePrefix
 	 * @param vmName
 	 * @param cloud
 	 * @param serverTemplate
+	 * @param powerOn
+	 * @param annotation
 	 * @return
 	 * @throws CloudProvisioningException
 	 */
 	private VirtualMachine cloneVMTemplate(
-			VirtualMachine virtualMachineTemplate, String serverNamePrefix,
-			String vmName,Cloud cloud,CloudTemplate serverTemplate) throws CloudProvisioningException {
-		VirtualMachineConfigSpec virtualMachineConfigSpec =createVMConfigSpec(serverTemplate);
+			TemplateLocation templateLocation, String serverNamePrefix,
+			String vmName,Cloud cloud,CloudTemplate serverTemplate,boolean powerOn,String annotation) throws CloudProvisioningException {
+		VirtualMachine virtualMachineTemplate = (VirtualMachine) MorUtil.createExactManagedEntity(serviceInstance.getServerConnection(), templateLocation.getTemplate());
+		Folder folder = (Folder) MorUtil.createExactManagedEntity(serviceInstance.getServerConnection(), templateLocation.getFolder());
+		VirtualMachineConfigSpec virtualMachineConfigSpec =createVMConfigSpec(serverTemplate,annotation);
 		CustomizationSpec customizationSpec = createCustomizationSpec(serverNamePrefix,vmName,cloud,serverTemplate);
-		VirtualMachineRelocateSpec virtualMachineRelocateSpec = createVMRelocateSpec(virtualMachineTemplate);
+		VirtualMachineRelocateSpec virtualMachineRelocateSpec = createVMRelocateSpec(templateLocation);
 		
 		VirtualMachineCloneSpec virtualMachineCloneSpec = new VirtualMachineCloneSpec();
+		if(isLinkedClone(serverTemplate)){
+			// the clone's disks are children of the snapshot's disks, nothing is copied
+			virtualMachineCloneSpec.setSnapshot(findOrCreateSnapshot(serverTemplate.getImageId(), virtualMachineTemplate, getLinkedCloneSnapshot(serverTemplate)));
+			virtualMachineRelocateSpec.setDiskMoveType(VirtualMachineRelocateDiskMoveOptions.createNewChildDiskBacking.toString());
+		}
 		
 			virtualMachineCloneSpec.setTemplate(false);
-		    virtualMachineCloneSpec.setPowerOn(true);
+		    virtualMachineCloneSpec.setPowerOn(powerOn);
 		    virtualMachineCloneSpec.setCustomization(customizationSpec);
 		    virtualMachineCloneSpec.setConfig(virtualMachineConfigSpec);
 		    virtualMachineCloneSpec.setLocation(virtualMachineRelocateSpec); 
 		    try {
-		    Task task =virtualMachineTemplate.cloneVM_Task((Folder)virtualMachineTemplate.getParent(),vmName,virtualMachineCloneSpec);
+		    Task task =virtualMachineTemplate.cloneVM_Task(folder,vmName,virtualMachineCloneSpec);
 		    task.waitForTask();
-		    if(task.getTaskInfo().state == TaskInfoState.success){
-		    	ManagedObjectReference newVmMOR = (ManagedObjectReference) task.getTaskInfo().getResult();
+		    TaskInfo taskInfo = task.getTaskInfo();
+		    if(taskInfo.state == TaskInfoState.success){
+		    	ManagedObjectReference newVmMOR = (ManagedObjectReference) taskInfo.getResult();
 		    	VirtualMachine newVM = (VirtualMachine) MorUtil.createExactManagedEntity(serviceInstance.getServerConnection(), newVmMOR);
 			    return newVM;
 
 		    }else{
-		    	throw new CloudProvisioningException("Unable to  create VM "+ task.getTaskInfo().state);	
+		    	// keep the fault, a ManagedObjectNotFound means the cached template location is stale
+		    	throw new CloudProvisioningException("Unable to  create VM "+ taskInfo.state,
+		    			taskInfo.getError() == null ? null : taskInfo.getError().getFault());
 		    }
 		    }catch(Exception e){
 				throw new CloudProvisioningException("Cannot create new VM", e);	
@@ -171,9 +365,12 @@ public class VSphereCommunicatorServiceImpl implements
 	}
 	
 	
-	private VirtualMachineConfigSpec createVMConfigSpec(CloudTemplate serverTemplate){
+	private VirtualMachineConfigSpec createVMConfigSpec(CloudTemplate serverTemplate,String annotation){
 		VirtualMachineConfigSpec virtualMachineConfigSpec = new VirtualMachineConfigSpec();
 		virtualMachineConfigSpec.setMemoryMB((long) serverTemplate.getMachineMemoryMB());
+		if(annotation != null){
+			virtualMachineConfigSpec.setAnnotation(annotation);
+		}
 		return virtualMachineConfigSpec;
 	}
 
@@ -191,12 +388,7 @@ public class VSphereCommunicatorServiceImpl implements
 			String serverNamePrefix, String vmName, Cloud cloud,CloudTemplate serverTemplate) {
 		 CustomizationLinuxPrep customizationLinuxPrep = new CustomizationLinuxPrep();
 		 CustomizationPrefixName hostnamePrefix = new CustomizationPrefixName();
-		 String serviceNamePrefix =(String) serverTemplate.getCustom().get("machineNamePrefix");
-		 if(!StringUtils.isEmpty(serviceNamePrefix)){
-			 hostnamePrefix.setBase(serviceNamePrefix);
-		 }else{
-		     hostnamePrefix.setBase(serverNamePrefix);
-		 }
+		 hostnamePrefix.setBase(getHostNamePrefix(serverNamePrefix, serverTemplate));
 	     customizationLinuxPrep.setHostName(hostnamePrefix);
 	     customizationLinuxPrep.setDomain((String) cloud.getCustom().get(GUEST_DOMAIN));
 
@@ -219,15 +411,101 @@ public class VSphereCommunicatorServiceImpl implements
 			  	return customizationSpec;
 			  	
 	}
+	private static String getHostNamePrefix(String serverNamePrefix, CloudTemplate serverTemplate) {
+		String serviceNamePrefix =(String) serverTemplate.getCustom().get("machineNamePrefix");
+		return StringUtils.isEmpty(serviceNamePrefix) ? serverNamePrefix : serviceNamePrefix;
+	}
+
 	private VirtualMachineRelocateSpec createVMRelocateSpec(
-			VirtualMachine virtualMachineTemplate) {
-		 ManagedObjectReference hostMOR = virtualMachineTemplate.getRuntime().getHost();
-         HostSystem host = (HostSystem) MorUtil.createExactManagedEntity(virtualMachineTemplate.getServerConnection(), hostMOR);
-         ManagedObjectReference rourcePoolMOR = (ManagedObjectReference)((ComputeResource)host.getParent()).getPropertyByPath(RESOURCE_POOL);
+			TemplateLocation templateLocation) {
          VirtualMachineRelocateSpec vmrs = new VirtualMachineRelocateSpec();
-         vmrs.setPool(rourcePoolMOR);
+         vmrs.setPool(templateLocation.getResourcePool());
          return vmrs;
 	}
+
+	private static boolean isLinkedClone(CloudTemplate serverTemplate) {
+		Object linkedClone = serverTemplate.getCustom().get(LINKED_CLONE);
+		return linkedClone != null && Boolean.parseBoolean(linkedClone.toString());
+	}
+
+	private static String getLinkedCloneSnapshot(CloudTemplate serverTemplate) {
+		String snapshotName = (String) serverTemplate.getCustom().get(LINKED_CLONE_SNAPSHOT);
+		return StringUtils.isEmpty(snapshotName) ? DEFAULT_LINKED_CLONE_SNAPSHOT : snapshotName;
+	}
+
+	/**
+	 * Returns the snapshot of the template that linked clones are made from, taking it first if the
+	 * template does not have it yet. Synchronized so parallel clones do not each take a snapshot.
+	 */
+	private synchronized ManagedObjectReference findOrCreateSnapshot(String vmTemplateName,
+			VirtualMachine virtualMachineTemplate, String snapshotName) throws CloudProvisioningException {
+		ManagedObjectReference snapshot = templateLookupCache.getSnapshot(vmTemplateName, snapshotName);
+		if (snapshot != null) {
+			return snapshot;
+		}
+		try {
+			VirtualMachineSnapshotInfo snapshotInfo = virtualMachineTemplate.getSnapshot();
+			if (snapshotInfo != null) {
+				snapshot = findSnapshot(snapshotInfo.getRootSnapshotList(), snapshotName);
+			}
+			if (snapshot == null && virtualMachineTemplate.getConfig().isTemplate()) {
+				// vSphere cannot snapshot a template, the snapshot has to be taken before it was marked as one
+				throw new CloudProvisioningException("Template " + vmTemplateName + " has no snapshot " + snapshotName
+						+ " for linked clones. Convert it to a virtual machine, take the snapshot and convert it back"
+						+ " to a template, or point the template setting at a virtual machine.");
+			}
+			if (snapshot == null) {
+				logger.log(Level.INFO, "Taking snapshot " + snapshotName + " of template " + vmTemplateName + " for linked clones");
+				Task task = virtualMachineTemplate.createSnapshot_Task(snapshotName, "Base of linked clones", false, false);
+				task.waitForTask();
+				TaskInfo taskInfo = task.getTaskInfo();
+				if (taskInfo.state != TaskInfoState.success) {
+					throw new CloudProvisioningException("Unable to take snapshot " + snapshotName + " of template " + vmTemplateName
+							+ " " + taskInfo.state, taskInfo.getError() == null ? null : taskInfo.getError().getFault());
+				}
+				snapshot = (ManagedObjectReference) taskInfo.getResult();
+			}
+		} catch (CloudProvisioningException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new CloudProvisioningException("Cannot find snapshot " + snapshotName + " of template " + vmTemplateName, e);
+		}
+		templateLookupCache.putSnapshot(vmTemplateName, snapshotName, snapshot);
+		return snapshot;
+	}
+
+	private static ManagedObjectReference findSnapshot(VirtualMachineSnapshotTree[] snapshots, String snapshotName) {
+		if (snapshots == null) {
+			return null;
+		}
+		for (VirtualMachineSnapshotTree snapshot : snapshots) {
+			if (snapshotName.equals(snapshot.getName())) {
+				return snapshot.getSnapshot();
+			}
+			ManagedObjectReference child = findSnapshot(snapshot.getChildSnapshotList(), snapshotName);
+			if (child != null) {
+				return child;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Finds a template, the folder its clones go to and the resource pool of its host, using the
+	 * cached location when there is one.
+	 */
+	private TemplateLocation lookupTemplate(String vmTemplateName) throws CloudProvisioningException {
+		TemplateLocation cached = templateLookupCache.get(vmTemplateName);
+		if (cached != null) {
+			return cached;
+		}
+		VirtualMachine virtualMachineTemplate = findVirtualMachine(vmTemplateName);
+		ManagedObjectReference hostMOR = virtualMachineTemplate.getRuntime().getHost();
+		HostSystem host = (HostSystem) MorUtil.createExactManagedEntity(virtualMachineTemplate.getServerConnection(), hostMOR);
+		ManagedObjectReference rourcePoolMOR = (ManagedObjectReference)((ComputeResource)host.getParent()).getPropertyByPath(RESOURCE_POOL);
+		return templateLookupCache.put(vmTemplateName, virtualMachineTemplate.getMOR(),
+				virtualMachineTemplate.getParent().getMOR(), rourcePoolMOR);
+	}
 	public void terminateServer(long duration, TimeUnit unit,MachineDetails machineDetails) throws CloudProvisioningException {
 
 		if(logger.isLoggable(Level.INFO)){
@@ -242,18 +520,13 @@ public class VSphereCommunicatorServiceImpl implements
 	public boolean terminateServerByIp(long duration,TimeUnit unit ,String machineIp) throws CloudProvisioningException {
 		try{
 			logger.log(Level.INFO,"Looking to terminate server "+machineIp);
-		ManagedEntity[] mentities =  new InventoryNavigator(rootFolder).searchManagedEntities(VIRTUAL_MACHINE);
-		if(mentities !=null){
-			VirtualMachine[] vms = Arrays.asList(mentities).toArray(new VirtualMachine[mentities.length]);
-			logger.log(Level.FINE,"vms length "+vms.length);
-			for(VirtualMachine eachVM:vms){
-				
-				logger.log(Level.FINE,"Guest Ip "+eachVM.getGuest().getIpAddress());
-				if(StringUtils.equals(eachVM.getGuest().getIpAddress(),machineIp)){
-					logger.log(Level.INFO,"Terminating Server "+machineIp);
-					destroyVM(WAIT_UNTIL_FINISH, unit, eachVM);
-					return true;
-				}
+		List<VirtualMachineSummary> vms = virtualMachineScanner.scan();
+		logger.log(Level.FINE,"vms length "+vms.size());
+		for(VirtualMachineSummary eachVM:vms){
+			if(StringUtils.equals(eachVM.getIpAddress(),machineIp)){
+				logger.log(Level.INFO,"Terminating Server "+machineIp);
+				destroyVM(WAIT_UNTIL_FINISH, unit, toVirtualMachine(eachVM));
+				return true;
 			}
 		}
 		}catch(Exception e){
@@ -265,21 +538,15 @@ public class VSphereCommunicatorServiceImpl implements
 
 	public void terminateServers(String serverNamePrefix) throws CloudProvisioningException {
 		try{
-			ManagedEntity[] mentities = new InventoryNavigator(rootFolder).searchManagedEntities(VIRTUAL_MACHINE);
 			List<VirtualMachine> vmsToBeDestroyed= new ArrayList<VirtualMachine>();
-			if(mentities !=null){
-				VirtualMachine[] vms = Arrays.asList(mentities).toArray(new VirtualMachine[mentities.length]);
-
-				for(VirtualMachine eachVM:vms){
-					if(eachVM.getName().startsWith(serverNamePrefix)){
-						vmsToBeDestroyed.add(eachVM);
-						
-					}
-				}
-				for(VirtualMachine eachVM:vmsToBeDestroyed){
-					destroyVM(WAIT_UNTIL_FINISH, null, eachVM);
+			for(VirtualMachineSummary eachVM:virtualMachineScanner.scan()){
+				if(eachVM.getName() != null && eachVM.getName().startsWith(serverNamePrefix)){
+					vmsToBeDestroyed.add(toVirtualMachine(eachVM));
 				}
 			}
+			for(VirtualMachine eachVM:vmsToBeDestroyed){
+				destroyVM(WAIT_UNTIL_FINISH, null, eachVM);
+			}
 			}catch(Exception e){
 				
 				logger.log(Level.SEVERE,"Cannot Terminate Server",e);
@@ -288,13 +555,18 @@ public class VSphereCommunicatorServiceImpl implements
 		
 	}
 	public void close() {
+		preClonedVmPool.close();
+		guestReadinessWatcher.close();
 	    serviceInstance.getServerConnection().logout();		
 	}
 	
 	private void destroyVM(long duration, TimeUnit unit,
 			VirtualMachine virtualMachine) throws CloudProvisioningException {
 		try {
-		Task task = virtualMachine.powerOffVM_Task();
+		Task task;
+		// pooled VMs are still powered off
+		if(virtualMachine.getRuntime().getPowerState() != VirtualMachinePowerState.poweredOff){
+		task = virtualMachine.powerOffVM_Task();
 		if(duration > 0){
 		task.wait(unit.toMillis(duration));
 		}else{
@@ -303,6 +575,7 @@ public class VSphereCommunicatorServiceImpl implements
 		if(task.getTaskInfo().state != TaskInfoState.success){
 			throw new CloudProvisioningException("Cannot terminate server..Time expired when powering off")	;
 		}
+		}
 		task = virtualMachine.destroy_Task();
 		if(duration > 0){
 			task.wait(unit.toMillis(duration));
@@ -318,6 +591,10 @@ public class VSphereCommunicatorServiceImpl implements
 			throw new CloudProvisioningException("Cannot terminate server", e)	;
 		}
 	}
+	private VirtualMachine toVirtualMachine(VirtualMachineSummary summary) {
+		return (VirtualMachine) MorUtil.createExactManagedEntity(serviceInstance.getServerConnection(), summary.getMOR());
+	}
+
 	private VirtualMachine findVirtualMachine(
 			String vmName) throws CloudProvisioningException {
 		
@@ -333,4 +610,19 @@ public class VSphereCommunicatorServiceImpl implements
 		VirtualMachine virtualMachineTemplate = (VirtualMachine)managedEntity;
 		return virtualMachineTemplate;
 	}
+
+	/**
+	 * What the VMs of a pool are cloned with.
+	 */
+	private static class PoolCloneSpec {
+		private final String serverNamePrefix;
+		private final Cloud cloud;
+		private final CloudTemplate serverTemplate;
+
+		PoolCloneSpec(String serverNamePrefix, Cloud cloud, CloudTemplate serverTemplate) {
+			this.serverNamePrefix = serverNamePrefix;
+			this.cloud = cloud;
+			this.serverTemplate = serverTemplate;
+		}
+	}
 }
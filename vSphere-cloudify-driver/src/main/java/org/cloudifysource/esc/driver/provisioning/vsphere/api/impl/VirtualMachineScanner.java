@@ -0,0 +1,181 @@
+package org.cloudifysource.esc.driver.provisioning.vsphere.api.impl;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RetrieveOptions;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.mo.Folder;
+import com.vmware.vim25.mo.PropertyCollector;
+
+/**
+ * Lists all virtual machines below the root folder with a single paged
+ * PropertyCollector.retrievePropertiesEx call that only fetches their name, guest IP, power state and annotation,
+ * instead of searching the inventory and then reading each property of each VM with its own SOAP call.
+ *
+ */
+public class VirtualMachineScanner {
+
+	/**
+	 * The properties of a virtual machine fetched by a scan.
+	 */
+	public static class VirtualMachineSummary {
+
+		private final ManagedObjectReference mor;
+		private String name;
+		private String ipAddress;
+		private VirtualMachinePowerState powerState;
+		private String annotation;
+
+		VirtualMachineSummary(ManagedObjectReference mor) {
+			this.mor = mor;
+		}
+
+		public ManagedObjectReference getMOR() {
+			return mor;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getIpAddress() {
+			return ipAddress;
+		}
+
+		public VirtualMachinePowerState getPowerState() {
+			return powerState;
+		}
+
+		public String getAnnotation() {
+			return annotation;
+		}
+
+		@Override
+		public String toString() {
+			return name + "(" + mor.get_value() + ", " + ipAddress + ", " + powerState + ")";
+		}
+	}
+
+	private static final String VIRTUAL_MACHINE = "VirtualMachine";
+	private static final String NAME = "name";
+	private static final String GUEST_IP_ADDRESS = "guest.ipAddress";
+	private static final String POWER_STATE = "runtime.powerState";
+	private static final String ANNOTATION = "config.annotation";
+	private static final String FOLDER_TRAVERSAL = "folderTraversal";
+	private static final int PAGE_SIZE = 500;
+
+	private static final Logger logger = Logger.getLogger(VirtualMachineScanner.class.getName());
+
+	private final PropertyCollector propertyCollector;
+	private final Folder rootFolder;
+
+	public VirtualMachineScanner(PropertyCollector propertyCollector, Folder rootFolder) {
+		this.propertyCollector = propertyCollector;
+		this.rootFolder = rootFolder;
+	}
+
+	/**
+	 * @return the name, guest IP, power state and annotation of every virtual machine, templates included.
+	 * @throws RemoteException if the properties could not be retrieved.
+	 */
+	public List<VirtualMachineSummary> scan() throws RemoteException {
+		RetrieveOptions options = new RetrieveOptions();
+		options.setMaxObjects(PAGE_SIZE);
+
+		List<VirtualMachineSummary> vms = new ArrayList<VirtualMachineSummary>();
+		RetrieveResult result = propertyCollector.retrievePropertiesEx(
+				new PropertyFilterSpec[] { createFilterSpec() }, options);
+		while (result != null) {
+			addAll(vms, result.getObjects());
+			if (result.getToken() == null) {
+				break;
+			}
+			result = propertyCollector.continueRetrievePropertiesEx(result.getToken());
+		}
+		logger.log(Level.FINE, "Scanned " + vms.size() + " virtual machines");
+		return vms;
+	}
+
+	private static void addAll(List<VirtualMachineSummary> vms, ObjectContent[] objects) {
+		if (objects == null) {
+			return;
+		}
+		for (ObjectContent object : objects) {
+			VirtualMachineSummary vm = new VirtualMachineSummary(object.getObj());
+			if (object.getPropSet() != null) {
+				for (DynamicProperty property : object.getPropSet()) {
+					if (NAME.equals(property.getName())) {
+						vm.name = (String) property.getVal();
+					} else if (GUEST_IP_ADDRESS.equals(property.getName())) {
+						vm.ipAddress = (String) property.getVal();
+					} else if (POWER_STATE.equals(property.getName())) {
+						vm.powerState = (VirtualMachinePowerState) property.getVal();
+					} else if (ANNOTATION.equals(property.getName())) {
+						vm.annotation = (String) property.getVal();
+					}
+				}
+			}
+			vms.add(vm);
+		}
+	}
+
+	private PropertyFilterSpec createFilterSpec() {
+		PropertySpec propertySpec = new PropertySpec();
+		propertySpec.setType(VIRTUAL_MACHINE);
+		propertySpec.setAll(Boolean.FALSE);
+		propertySpec.setPathSet(new String[] { NAME, GUEST_IP_ADDRESS, POWER_STATE, ANNOTATION });
+
+		ObjectSpec objectSpec = new ObjectSpec();
+		objectSpec.setObj(rootFolder.getMOR());
+		objectSpec.setSkip(Boolean.TRUE);
+		objectSpec.setSelectSet(createTraversal());
+
+		PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+		filterSpec.setPropSet(new PropertySpec[] { propertySpec });
+		filterSpec.setObjectSet(new ObjectSpec[] { objectSpec });
+		return filterSpec;
+	}
+
+	/**
+	 * Walks folders, the VM folders of datacenters and the VMs of vApps.
+	 */
+	private static SelectionSpec[] createTraversal() {
+		SelectionSpec recurseFolders = new SelectionSpec();
+		recurseFolders.setName(FOLDER_TRAVERSAL);
+
+		TraversalSpec datacenterVmFolder = new TraversalSpec();
+		datacenterVmFolder.setName("datacenterVmTraversal");
+		datacenterVmFolder.setType("Datacenter");
+		datacenterVmFolder.setPath("vmFolder");
+		datacenterVmFolder.setSkip(Boolean.FALSE);
+		datacenterVmFolder.setSelectSet(new SelectionSpec[] { recurseFolders });
+
+		TraversalSpec vAppVms = new TraversalSpec();
+		vAppVms.setName("vAppTraversal");
+		vAppVms.setType("VirtualApp");
+		vAppVms.setPath("vm");
+		vAppVms.setSkip(Boolean.FALSE);
+
+		TraversalSpec folderChildren = new TraversalSpec();
+		folderChildren.setName(FOLDER_TRAVERSAL);
+		folderChildren.setType("Folder");
+		folderChildren.setPath("childEntity");
+		folderChildren.setSkip(Boolean.FALSE);
+		folderChildren.setSelectSet(new SelectionSpec[] { recurseFolders, datacenterVmFolder, vAppVms });
+
+		return new SelectionSpec[] { folderChildren, datacenterVmFolder, vAppVms };
+	}
+}
@@ -156,7 +156,17 @@ cloud {
 					overrides ([:])
 					//use this prefix if specified for hostnames else use app-agent
 					custom ([ 
-						"machineNamePrefix" : "app-nginx"
+						"machineNamePrefix" : "app-nginx",
+						// Optional. Clone from a snapshot of the template, sharing its disks instead of copying them.
+						// The snapshot is taken on first use if the image is a virtual machine that does not have it.
+						// vSphere cannot snapshot a template: take the snapshot before marking the machine as a template.
+						"vsphere.linkedClone" : "false",
+						"vsphere.linkedClone.snapshot" : "cloudify-linked-clone-base",
+						// Optional. Keep powered off clones ready so new machines only need to boot. The pool is
+						// refilled up to the high watermark when it holds fewer VMs than the low one. 0 disables it.
+						// Pooled VMs are destroyed when the cloud is torn down.
+						"vsphere.pool.lowWatermark" : "0",
+						"vsphere.pool.highWatermark" : "0"
 						])
 
 